@@ -0,0 +1,67 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// 文件列表JSON生成：与 FileListHandler 相同的写出路径，输出丢弃只计字符数
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileListBenchmark {
+    @Param({"10", "1000", "100000"})
+    int fileCount;
+
+    private WebServer.FileIndex.FileMeta[] files;
+
+    @Setup
+    public void setup() {
+        files = new WebServer.FileIndex.FileMeta[fileCount];
+        long base = 1700000000000L;
+        for (int i = 0; i < fileCount; i++) {
+            // 混合ASCII、中文、需要转义的字符，约一半文件带sha256
+            String name = (i % 3 == 0 ? "报告_" : i % 3 == 1 ? "photo \"" : "dir/data-") + i + ".bin";
+            String sha256 = i % 2 == 0 ? String.format("%064x", i) : null;
+            files[i] = new WebServer.FileIndex.FileMeta(name, 1024L * i, base + i * 1000L, sha256);
+        }
+    }
+
+    @Benchmark
+    public long writeFileList() throws IOException {
+        CountingWriter writer = new CountingWriter();
+        WebServer.FileListHandler.writeFileList(writer, files, files.length, null);
+        return writer.count;
+    }
+
+    static final class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            count += csq.length();
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
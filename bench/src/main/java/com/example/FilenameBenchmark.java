@@ -0,0 +1,47 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilenameBenchmark {
+    @Param({"ascii", "chinese", "encoded"})
+    String kind;
+
+    private String headers;
+    private String filename;
+
+    @Setup
+    public void setup() {
+        switch (kind) {
+            case "ascii":
+                filename = "C:\\Users\\me\\Documents\\quarterly-report_2024.final.pdf";
+                break;
+            case "chinese":
+                filename = "/home/用户/文档/季度报告（最终版）2024.docx";
+                break;
+            case "encoded":
+                filename = "%E5%AD%A3%E5%BA%A6%E6%8A%A5%E5%91%8A%202024.docx";
+                break;
+            default:
+                throw new IllegalArgumentException(kind);
+        }
+        headers = "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+            + "Content-Type: application/octet-stream";
+    }
+
+    @Benchmark
+    public String extractFilename() {
+        return WebServer.UploadHandler.extractFilename(headers);
+    }
+
+    @Benchmark
+    public String sanitizeFilename() {
+        return WebServer.UploadHandler.sanitizeFilename(filename);
+    }
+}
@@ -0,0 +1,458 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// 端到端压测：在回环地址上启动一个独立的 WebServer 进程（临时工作目录），注册并登录若干用户，
+// 按配置的比例并发执行上传、完整下载、区间下载、列表和删除，最后输出各端点的吞吐、延迟分位数和字节速率
+//
+// 用法：java -cp bench/target/benchmarks.jar com.example.LoadTest [--key=value ...]
+//   --users=4 --concurrency=16 --warmup=5 --duration=30 --file-size=1048576 --range-size=65536
+//   --mix=upload:20,download:25,range:20,list:30,delete:5   另有put（PUT /files/<名称>原始请求体上传）
+//   --server-opts="-Xmx512m -Dmirad.executor=virtual"   传给服务器进程的JVM参数
+//   --target=http://host:port                            压测已在运行的服务器，不再自行启动
+public class LoadTest {
+    private static final String PASSWORD = "loadtest-pass";
+    private static final String BOUNDARY = "----MiradLoadTestBoundary7MA4YWxkTrZu0gW";
+    private static final Pattern SAVED_NAME = Pattern.compile("\"name\":\\s*\"([^\"]*)\"");
+
+    enum Op { UPLOAD, PUT, DOWNLOAD, RANGE, LIST, DELETE }
+
+    private final Map<String, String> options;
+    private final HttpClient client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+    private String baseUrl;
+    private final int fileSize;
+    private final int rangeSize;
+    private final byte[] content;
+    private final Op[] schedule; // 按比例展开的操作表，随机取一项
+    private final List<User> users = new ArrayList<>();
+
+    static final class User {
+        final String name;
+        String session;
+        final ConcurrentLinkedDeque<String> files = new ConcurrentLinkedDeque<>();
+
+        User(String name) {
+            this.name = name;
+        }
+    }
+
+    // 每个工作线程各自记录，结束后合并，避免测量本身引入争用
+    static final class Recorder {
+        final long[][] latencies = new long[Op.values().length][];
+        final int[] counts = new int[Op.values().length];
+        final long[] errors = new long[Op.values().length];
+        final long[] bytes = new long[Op.values().length];
+
+        Recorder() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new long[1024];
+            }
+        }
+
+        void record(Op op, long nanos, long transferred, boolean ok) {
+            int i = op.ordinal();
+            if (!ok) {
+                errors[i]++;
+                return;
+            }
+            if (counts[i] == latencies[i].length) {
+                latencies[i] = Arrays.copyOf(latencies[i], counts[i] * 2);
+            }
+            latencies[i][counts[i]++] = nanos;
+            bytes[i] += transferred;
+        }
+    }
+
+    LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.fileSize = intOption("file-size", 1024 * 1024);
+        this.rangeSize = Math.min(intOption("range-size", 64 * 1024), fileSize);
+        this.content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        this.schedule = parseMix(options.getOrDefault("mix", "upload:20,download:25,range:20,list:30,delete:5"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("无法识别的参数: " + arg);
+                System.exit(2);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    void run() throws Exception {
+        Process server = null;
+        Path workDir = null;
+        try {
+            String target = options.get("target");
+            if (target != null) {
+                baseUrl = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+            } else {
+                workDir = Files.createTempDirectory("mirad-loadtest");
+                int port = intOption("port", 0) > 0 ? intOption("port", 0) : freePort();
+                server = startServer(workDir, port);
+                baseUrl = "http://127.0.0.1:" + port;
+            }
+            waitForServer(server);
+            setupUsers(intOption("users", 4));
+
+            int concurrency = intOption("concurrency", 16);
+            long warmupNanos = intOption("warmup", 5) * 1_000_000_000L;
+            long durationNanos = intOption("duration", 30) * 1_000_000_000L;
+            System.out.printf("压测 %s：%d 个用户，%d 并发，预热 %ds，测量 %ds，文件 %d 字节%n",
+                baseUrl, users.size(), concurrency, warmupNanos / 1_000_000_000L, durationNanos / 1_000_000_000L, fileSize);
+
+            long start = System.nanoTime();
+            long measureFrom = start + warmupNanos;
+            long end = measureFrom + durationNanos;
+            List<Recorder> recorders = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(concurrency);
+            AtomicLong sequence = new AtomicLong();
+            for (int w = 0; w < concurrency; w++) {
+                Recorder recorder = new Recorder();
+                recorders.add(recorder);
+                User user = users.get(w % users.size());
+                Thread t = new Thread(() -> {
+                    try {
+                        work(user, recorder, sequence, measureFrom, end);
+                    } finally {
+                        done.countDown();
+                    }
+                }, "loadtest-" + w);
+                t.setDaemon(true);
+                t.start();
+            }
+            done.await();
+            report(recorders, durationNanos);
+        } finally {
+            if (server != null) {
+                server.destroy();
+                server.waitFor();
+            }
+            if (workDir != null && !"true".equals(options.get("keep"))) {
+                deleteRecursively(workDir);
+            }
+        }
+    }
+
+    private void work(User user, Recorder recorder, AtomicLong sequence, long measureFrom, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            long begin = System.nanoTime();
+            if (begin >= end) {
+                return;
+            }
+            Op op = schedule[random.nextInt(schedule.length)];
+            long transferred;
+            boolean ok;
+            try {
+                transferred = execute(op, user, random, sequence);
+                ok = transferred >= 0;
+            } catch (IOException | UncheckedIOException e) {
+                transferred = 0;
+                ok = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (begin >= measureFrom) {
+                recorder.record(op, System.nanoTime() - begin, transferred, ok);
+            }
+        }
+    }
+
+    // 返回传输的字节数，失败返回-1
+    private long execute(Op op, User user, ThreadLocalRandom random, AtomicLong sequence)
+            throws IOException, InterruptedException {
+        switch (op) {
+            case UPLOAD:
+                return upload(user, "lt-" + sequence.incrementAndGet() + ".bin") ? fileSize : -1;
+            case PUT:
+                return put(user, "lt-" + sequence.incrementAndGet() + ".bin") ? fileSize : -1;
+            case DOWNLOAD: {
+                String file = pick(user, random);
+                if (file == null) {
+                    return upload(user, "lt-" + sequence.incrementAndGet() + ".bin") ? fileSize : -1;
+                }
+                return drain(send(user, request("/download?file=" + encode(file)).GET()), 200);
+            }
+            case RANGE: {
+                String file = pick(user, random);
+                if (file == null) {
+                    return upload(user, "lt-" + sequence.incrementAndGet() + ".bin") ? fileSize : -1;
+                }
+                long from = random.nextLong(fileSize - rangeSize + 1);
+                return drain(send(user, request("/download?file=" + encode(file))
+                    .header("Range", "bytes=" + from + "-" + (from + rangeSize - 1)).GET()), 206);
+            }
+            case LIST:
+                return drain(send(user, request("/list-files?limit=100").GET()), 200);
+            case DELETE: {
+                // 至少保留一个文件供下载使用
+                String file = user.files.size() > 1 ? user.files.pollFirst() : null;
+                if (file == null) {
+                    return drain(send(user, request("/list-files?limit=100").GET()), 200);
+                }
+                return drain(send(user, request("/delete?file=" + encode(file)).DELETE()), 200);
+            }
+            default:
+                throw new IllegalStateException(op.name());
+        }
+    }
+
+    private boolean upload(User user, String filename) throws IOException, InterruptedException {
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+            + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        HttpResponse<String> response = client.send(request("/upload")
+            .header("Cookie", "sessionId=" + user.session)
+            .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+            .POST(HttpRequest.BodyPublishers.ofByteArrays(Arrays.asList(head, content, tail)))
+            .build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() != 200) {
+            return false;
+        }
+        // 服务器可能因重名改写文件名，以响应为准
+        Matcher m = SAVED_NAME.matcher(response.body());
+        user.files.addLast(m.find() ? m.group(1) : filename);
+        return true;
+    }
+
+    private boolean put(User user, String filename) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request("/files/" + encode(filename))
+            .header("Cookie", "sessionId=" + user.session)
+            .PUT(HttpRequest.BodyPublishers.ofByteArray(content))
+            .build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() != 201) {
+            return false;
+        }
+        Matcher m = SAVED_NAME.matcher(response.body());
+        user.files.addLast(m.find() ? m.group(1) : filename);
+        return true;
+    }
+
+    private static String pick(User user, ThreadLocalRandom random) {
+        // 在最近上传的若干文件中随机取一个，避免遍历整个队列
+        Iterator<String> it = user.files.descendingIterator();
+        int skip = random.nextInt(8);
+        String last = null;
+        while (it.hasNext()) {
+            last = it.next();
+            if (skip-- == 0) {
+                break;
+            }
+        }
+        return last;
+    }
+
+    private HttpResponse<InputStream> send(User user, HttpRequest.Builder builder) throws IOException, InterruptedException {
+        return client.send(builder.header("Cookie", "sessionId=" + user.session).build(),
+            HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    private static long drain(HttpResponse<InputStream> response, int expectedStatus) throws IOException {
+        long total = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = response.body()) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                total += n;
+            }
+        }
+        return response.statusCode() == expectedStatus ? total : -1;
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(Duration.ofSeconds(120));
+    }
+
+    private void setupUsers(int count) throws IOException, InterruptedException {
+        String prefix = "lt" + Long.toString(System.currentTimeMillis() % 100000, 36) + "_";
+        for (int i = 0; i < count; i++) {
+            User user = new User(prefix + i);
+            String form = "username=" + user.name + "&password=" + PASSWORD;
+            HttpResponse<String> registered = client.send(request("/register")
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form)).build(), HttpResponse.BodyHandlers.ofString());
+            if (registered.statusCode() != 200) {
+                throw new IOException("注册失败 " + user.name + ": " + registered.body());
+            }
+            HttpResponse<String> login = client.send(request("/login")
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form)).build(), HttpResponse.BodyHandlers.ofString());
+            user.session = login.headers().allValues("Set-Cookie").stream()
+                .filter(c -> c.startsWith("sessionId="))
+                .map(c -> c.substring("sessionId=".length()).split(";", 2)[0])
+                .findFirst()
+                .orElseThrow(() -> new IOException("登录失败 " + user.name + ": " + login.body()));
+            // 预先放几个文件，保证下载一开始就有目标
+            for (int f = 0; f < 4; f++) {
+                if (!upload(user, "seed-" + f + ".bin")) {
+                    throw new IOException("预置文件上传失败: " + user.name);
+                }
+            }
+            users.add(user);
+        }
+    }
+
+    private Process startServer(Path workDir, int port) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        String serverOpts = options.getOrDefault("server-opts", "");
+        if (!serverOpts.trim().isEmpty()) {
+            command.addAll(Arrays.asList(serverOpts.trim().split("\\s+")));
+        }
+        command.add("-Dmirad.bind=127.0.0.1");
+        command.add("-Dmirad.port=" + port);
+        command.add("-Dfile.encoding=UTF-8");
+        command.add("-cp");
+        // 服务器在临时目录中运行，类路径需要转成绝对路径
+        StringJoiner classpath = new StringJoiner(File.pathSeparator);
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classpath.add(Path.of(entry).toAbsolutePath().toString());
+        }
+        command.add(classpath.toString());
+        command.add("com.example.WebServer");
+        File log = workDir.resolve("server.log").toFile();
+        System.out.println("启动服务器，工作目录 " + workDir + "，日志 " + log);
+        return new ProcessBuilder(command)
+            .directory(workDir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(log)
+            .start();
+    }
+
+    private void waitForServer(Process server) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            if (server != null && !server.isAlive()) {
+                throw new IOException("服务器进程已退出，退出码 " + server.exitValue());
+            }
+            try {
+                client.send(request("/check-login").GET().build(), HttpResponse.BodyHandlers.discarding());
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("等待服务器启动超时: " + baseUrl);
+    }
+
+    private void report(List<Recorder> recorders, long durationNanos) {
+        double seconds = durationNanos / 1e9;
+        System.out.println();
+        System.out.printf("%-9s %9s %7s %10s %10s %9s %9s %9s %9s%n",
+            "endpoint", "requests", "errors", "req/s", "MB/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+        long totalRequests = 0;
+        long totalErrors = 0;
+        long totalBytes = 0;
+        for (Op op : Op.values()) {
+            int i = op.ordinal();
+            int count = 0;
+            long errors = 0;
+            long bytes = 0;
+            for (Recorder r : recorders) {
+                count += r.counts[i];
+                errors += r.errors[i];
+                bytes += r.bytes[i];
+            }
+            if (count == 0 && errors == 0) {
+                continue;
+            }
+            long[] all = new long[count];
+            int pos = 0;
+            for (Recorder r : recorders) {
+                System.arraycopy(r.latencies[i], 0, all, pos, r.counts[i]);
+                pos += r.counts[i];
+            }
+            Arrays.sort(all);
+            System.out.printf("%-9s %9d %7d %10.1f %10.2f %9.2f %9.2f %9.2f %9.2f%n",
+                op.name().toLowerCase(Locale.ROOT), count, errors, count / seconds, bytes / seconds / 1048576.0,
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999),
+                all.length == 0 ? 0.0 : all[all.length - 1] / 1e6);
+            totalRequests += count;
+            totalErrors += errors;
+            totalBytes += bytes;
+        }
+        System.out.printf("%-9s %9d %7d %10.1f %10.2f%n",
+            "total", totalRequests, totalErrors, totalRequests / seconds, totalBytes / seconds / 1048576.0);
+    }
+
+    private static double percentile(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    // "upload:20,download:25" 展开为100项的操作表
+    private static Op[] parseMix(String mix) {
+        List<Op> ops = new ArrayList<>();
+        for (String item : mix.split(",")) {
+            String[] kv = item.trim().split(":", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("无效的mix: " + item);
+            }
+            Op op = Op.valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            for (int i = Integer.parseInt(kv[1].trim()); i > 0; i--) {
+                ops.add(op);
+            }
+        }
+        if (ops.isEmpty()) {
+            throw new IllegalArgumentException("mix不能为空");
+        }
+        return ops.toArray(new Op[0]);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// multipart解析吞吐：不同边界长度，以及充满"几乎是边界"的对抗性内容
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartParserBenchmark {
+    private static final int PAYLOAD_SIZE = 8 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1048576; // 与 UploadHandler 一致
+
+    // 浏览器常见边界约40字节，RFC 2046 上限70
+    @Param({"16", "40", "70"})
+    int boundaryLength;
+
+    // random=随机二进制；nearMiss=反复出现只差最后一个字节的边界；crlf=大量CRLF和"--"
+    @Param({"random", "nearMiss", "crlf"})
+    String payload;
+
+    private String boundary;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder("----MiradBoundary");
+        while (sb.length() < boundaryLength) {
+            sb.append((char) ('a' + sb.length() % 26));
+        }
+        boundary = sb.substring(0, boundaryLength);
+
+        byte[] content = new byte[PAYLOAD_SIZE];
+        Random random = new Random(42);
+        switch (payload) {
+            case "random":
+                random.nextBytes(content);
+                break;
+            case "nearMiss": {
+                byte[] miss = ("\r\n--" + boundary.substring(0, boundary.length() - 1) + "#")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+                for (int i = 0; i < content.length; i++) {
+                    content[i] = miss[i % miss.length];
+                }
+                break;
+            }
+            case "crlf": {
+                byte[] noise = "\r\n--\r\n-".getBytes(StandardCharsets.ISO_8859_1);
+                for (int i = 0; i < content.length; i++) {
+                    content[i] = noise[i % noise.length];
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException(payload);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(PAYLOAD_SIZE + 512);
+        out.write(("--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+            + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.write(content);
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        body = out.toByteArray();
+    }
+
+    @Benchmark
+    public long parse(Blackhole bh) throws IOException {
+        CountingListener listener = new CountingListener(bh);
+        new WebServer.MultipartParser(boundary, BUFFER_SIZE).parse(new ByteArrayInputStream(body), listener);
+        if (listener.bytes != PAYLOAD_SIZE) {
+            throw new IllegalStateException("解析结果长度不符: " + listener.bytes);
+        }
+        return listener.bytes;
+    }
+
+    static final class CountingListener implements WebServer.MultipartParser.PartListener {
+        private final Blackhole bh;
+        long bytes;
+
+        CountingListener(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void startPart(String headers) {
+            bh.consume(headers);
+        }
+
+        @Override
+        public void partData(byte[] data, int offset, int length) {
+            bytes += length;
+            bh.consume(data[offset]);
+        }
+
+        @Override
+        public void endPart() {
+        }
+    }
+}
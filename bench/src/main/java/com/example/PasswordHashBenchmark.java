@@ -0,0 +1,25 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordHashBenchmark {
+    @Param({"secret1", "一个比较长的中文密码-with-ascii-0123456789"})
+    String password;
+
+    @Benchmark
+    public String hashPassword() {
+        return WebServer.UserManager.hashPassword(password);
+    }
+
+    @Benchmark
+    public byte[] hashPasswordBytes() {
+        return WebServer.UserManager.hashPasswordBytes(password);
+    }
+}
@@ -0,0 +1,44 @@
+package com.example;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// validateSession 在多线程下的开销：所有线程命中同一会话（热点）与分散在大量会话上两种情况
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class SessionBenchmark {
+    @Param({"1", "10000"})
+    int sessionCount;
+
+    private String[] sessionIds;
+
+    @Setup
+    public void setup() {
+        sessionIds = new String[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            sessionIds[i] = WebServer.SessionManager.createSession("user" + i);
+        }
+    }
+
+    @Benchmark
+    public String validate() {
+        return WebServer.SessionManager.validateSession(
+            sessionIds[ThreadLocalRandom.current().nextInt(sessionIds.length)]);
+    }
+
+    @Benchmark
+    public String validateUnknown() {
+        return WebServer.SessionManager.validateSession("00000000-0000-0000-0000-000000000000");
+    }
+
+    // 签名令牌模式：校验只做HMAC，无共享状态
+    @Fork(value = 1, jvmArgsAppend = {"-Dmirad.session.mode=token", "-Dmirad.session.secret=bench-secret"})
+    public static class TokenMode extends SessionBenchmark {
+    }
+}
@@ -0,0 +1,86 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+    private static final long MICROS = 1000; // record() 以纳秒为单位
+
+    @Test
+    void upperBoundIsStrictlyIncreasing() {
+        long previous = 0;
+        for (int i = 0; i < WebServer.Metrics.LatencyHistogram.bucketCount(); i++) {
+            long bound = WebServer.Metrics.LatencyHistogram.upperBound(i);
+            assertTrue(bound > previous, "桶 " + i + " 的上界 " + bound + " 不大于前一个 " + previous);
+            previous = bound;
+        }
+    }
+
+    @Test
+    void everyValueFallsInsideItsBucket() {
+        Random random = new Random(42);
+        for (int n = 0; n < 1_000_000; n++) {
+            long micros = n < 100_000 ? n : random.nextLong() >>> (24 + random.nextInt(40));
+            int index = WebServer.Metrics.LatencyHistogram.indexOf(micros);
+            long lower = index == 0 ? 0 : WebServer.Metrics.LatencyHistogram.upperBound(index - 1);
+            long upper = WebServer.Metrics.LatencyHistogram.upperBound(index);
+            assertTrue(lower <= micros && micros < upper, micros + " 不在桶 " + index + " [" + lower + ", " + upper + ")");
+        }
+    }
+
+    @Test
+    void subBucketsAreDenseWithinOneSixteenthRelativeError() {
+        // 每个2的幂区间的16个子桶都会用到
+        for (int exponent = 0; exponent < 30; exponent++) {
+            for (int sub = 0; sub < 16; sub++) {
+                long micros = (16L + sub) << exponent;
+                assertEquals((exponent + 1) * 16 + sub, WebServer.Metrics.LatencyHistogram.indexOf(micros));
+            }
+        }
+        for (int i = 16; i < 30 * 16; i++) {
+            long lower = WebServer.Metrics.LatencyHistogram.upperBound(i - 1);
+            long width = WebServer.Metrics.LatencyHistogram.upperBound(i) - lower;
+            assertTrue(width * 16 <= lower, "桶 " + i + " 宽度 " + width + " 超过下界的1/16");
+        }
+    }
+
+    @Test
+    void cumulativeBucketsCountValuesAtOrBelowEachBound() {
+        WebServer.Metrics.LatencyHistogram histogram = new WebServer.Metrics.LatencyHistogram();
+        long[] samples = {
+            0, 999, 1000, 1001, 2200, 2499, 2500, 2501, 4_900, 5_000, 9_999, 10_001,
+            2_400_000, 2_500_000, 4_999_999, 10_000_000, 29_000_000, 30_000_001, 3_600_000_000L
+        };
+        for (long micros : samples) {
+            histogram.record(micros * MICROS);
+        }
+
+        StringBuilder out = new StringBuilder();
+        histogram.write(out, "m", "h=\"x\"");
+        Map<String, Long> buckets = new HashMap<>();
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith("m_bucket{")) {
+                String le = line.substring(line.indexOf("le=\"") + 4, line.indexOf("\"}"));
+                buckets.put(le, Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)));
+            }
+        }
+
+        for (double bound : WebServer.Metrics.LatencyHistogram.BOUNDS) {
+            long boundMicros = Math.round(bound * 1e6);
+            long expected = 0;
+            for (long micros : samples) {
+                if (micros <= boundMicros) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, (long) buckets.get(String.valueOf(bound)), "le=" + bound);
+        }
+        assertEquals(samples.length, (long) buckets.get("+Inf"));
+        assertTrue(out.toString().contains("m_count{h=\"x\"} " + samples.length + "\n"));
+    }
+}
@@ -1,64 +1,155 @@
 package com.example;
-import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
 import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 public class WebServer {
-    private static final int PORT = 9090;
+    private static final int PORT = Integer.getInteger("mirad.port", 9090);
+    private static final String BIND_ADDRESS = System.getProperty("mirad.bind"); // 为空时监听所有地址
     private static final String UPLOAD_DIR = "uploads";
     private static final String USERS_DIR = "users";
+    private static final String STAGING_DIR = "staging"; // 断点续传暂存目录
+    private static final String BLOB_DIR = "blobs"; // 内容寻址存储目录
     private static final int BUFFER_SIZE = 1048576; // 1MB
-    private static final int MAX_MEMORY = 10 * 1024 * 1024; // 10MB 内存缓冲区
-    private static final int DIRECT_BUFFER_SIZE = 2 * 1024 * 1024; // 2MB直接缓冲区
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
 
     public static void main(String[] args) throws IOException {
         // 创建必要目录
         createDirectory(UPLOAD_DIR);
         createDirectory(USERS_DIR);
+        createDirectory(STAGING_DIR);
+        BlobStore.init();
+        UsageManager.init();
+        ResumableUploadManager.loadPending();
+        ResumableUploadManager.startSweeper();
+        SessionManager.startSweeper();
+        UserManager.loadAll();
+        RateLimiter.start();
         
         // 创建HTTP服务器
-        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
-        
-        // 设置上下文处理器
-        server.createContext("/", new StaticFileHandler("web"));
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/list-files", new FileListHandler());
-        server.createContext("/download", new DownloadHandler());
-        server.createContext("/delete", new DeleteHandler());
-        server.createContext("/register", new RegisterHandler());
-        server.createContext("/login", new LoginHandler());
-        server.createContext("/logout", new LogoutHandler());
-        server.createContext("/check-login", new CheckLoginHandler());
+        InetSocketAddress address = BIND_ADDRESS == null || BIND_ADDRESS.isEmpty()
+            ? new InetSocketAddress(PORT) : new InetSocketAddress(BIND_ADDRESS, PORT);
+        // 传输层：jdk=JDK自带HttpServer（默认），nio=基于Selector的实现
+        String transport = System.getProperty("mirad.transport", "jdk");
+        HttpServer server = "nio".equalsIgnoreCase(transport)
+            ? NioHttpServer.open(address, 0) : HttpServer.create(address, 0);
         
-        // 设置线程池
+        // 执行模式：fixed=固定大小线程池（默认），virtual=每个请求一个虚拟线程
         int cores = Runtime.getRuntime().availableProcessors();
-        server.setExecutor(Executors.newFixedThreadPool(cores * 4));
+        String executorMode = System.getProperty("mirad.executor", "fixed");
+        boolean virtual = "virtual".equalsIgnoreCase(executorMode);
+        int poolSize = cores * 4;
+        
+        // 按端点类别限制并发：传输类请求占用缓冲区和长时间连接，单独限流，避免挤占元数据请求
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        int transferLimit = Integer.getInteger("mirad.limit.transfer",
+            virtual ? (int) Math.max(cores * 4, maxMemory / (2L * BUFFER_SIZE)) : Math.max(1, poolSize - cores));
+        int metadataLimit = Integer.getInteger("mirad.limit.metadata", virtual ? 1024 : poolSize);
+        Semaphore transferPermits = new Semaphore(transferLimit);
+        Semaphore metadataPermits = new Semaphore(metadataLimit);
+        
+        // 设置上下文处理器：指标统计 -> 请求数限速 -> 并发限制 -> 业务处理器
+        addContext(server, "/", new StaticFileHandler("web"), metadataPermits);
+        addContext(server, "/upload", new UploadHandler(), transferPermits);
+        addContext(server, "/resumable", new ResumableUploadHandler(), transferPermits);
+        addContext(server, "/files/", new RawUploadHandler(), transferPermits);
+        addContext(server, "/instant-upload", new InstantUploadHandler(), metadataPermits);
+        addContext(server, "/list-files", new FileListHandler(), metadataPermits);
+        addContext(server, "/download", new DownloadHandler(), transferPermits);
+        addContext(server, "/download-zip", new ZipDownloadHandler(), transferPermits);
+        addContext(server, "/delete", new DeleteHandler(), metadataPermits);
+        addContext(server, "/batch", new BatchHandler(), metadataPermits);
+        addContext(server, "/register", new RegisterHandler(), metadataPermits);
+        addContext(server, "/login", new LoginHandler(), metadataPermits);
+        addContext(server, "/logout", new LogoutHandler(), metadataPermits);
+        addContext(server, "/check-login", new CheckLoginHandler(), metadataPermits);
+        addContext(server, "/usage", new UsageHandler(), metadataPermits);
+        server.createContext("/metrics", new MetricsEndpointHandler());
         
-        System.out.println("服务器启动在 http://localhost:" + PORT);
+        // 设置线程池
+        ExecutorService executor = virtual ? newVirtualThreadExecutor() : Executors.newFixedThreadPool(poolSize);
+        Metrics.setExecutor(executor);
+        server.setExecutor(executor);
+        
+        System.out.println("服务器启动在 http://" + (BIND_ADDRESS == null || BIND_ADDRESS.isEmpty() ? "localhost" : BIND_ADDRESS) + ":" + PORT);
         System.out.println("文件上传根目录: " + Paths.get(UPLOAD_DIR).toAbsolutePath());
         System.out.println("用户数据目录: " + Paths.get(USERS_DIR).toAbsolutePath());
-        System.out.println("线程池大小: " + (cores * 4));
+        System.out.println("传输层: " + ("nio".equalsIgnoreCase(transport) ? "nio" : "jdk"));
+        System.out.println("执行模式: " + (virtual ? "virtual" : "fixed，线程池大小: " + poolSize));
+        System.out.println("并发上限: 传输 " + transferLimit + "，元数据 " + metadataLimit);
+        System.out.println("磁盘写入: " + DiskWriter.describe());
         System.out.println("按 Ctrl+C 停止服务");
         
         server.start();
     }
 
+    private static void addContext(HttpServer server, String path, HttpHandler handler, Semaphore permits) {
+        server.createContext(path, new MetricsHandler(path,
+            new RateLimitHandler(new ConcurrencyLimitHandler(handler, permits))));
+    }
+
+    // 每个请求一个虚拟线程（JDK 21+）；运行时不支持时退回为每个请求一个平台线程
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("当前JDK不支持虚拟线程，改用按需创建的平台线程");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     private static void createDirectory(String dir) throws IOException {
         Path path = Paths.get(dir);
         if (!Files.exists(path)) {
@@ -67,568 +158,5939 @@ public class WebServer {
         }
     }
 
-    // 用户管理工具类（修复语法错误）
-    static class UserManager {
-        // 验证用户凭证
-        static boolean validateUser(String username, String password) {
-            try {
-                Path userFile = Paths.get(USERS_DIR, username + ".user");
-                if (!Files.exists(userFile)) {
-                    return false;
-                }
+    // 传输层可选能力：响应体可直接从文件通道发送（sendfile），不经过用户态缓冲
+    interface FileTransferOutput {
+        boolean canTransfer();
+        
+        // 从source的position处发送至多count字节，返回实际发送的字节数
+        long transferFrom(FileChannel source, long position, long count) throws IOException;
+    }
 
-                String content = new String(Files.readAllBytes(userFile), StandardCharsets.UTF_8);
-                String storedHash = content.trim();
-                String inputHash = hashPassword(password);
+    // 传输层可选能力：请求体可直接写入文件通道
+    interface FileTransferInput {
+        boolean canTransfer();
+        
+        // 向target的position处写入至多count字节，返回实际写入的字节数，请求体已读完返回-1
+        long transferTo(FileChannel target, long position, long count) throws IOException;
+    }
 
-                return storedHash.equals(inputHash); // 原代码写错成storedHash，已修正
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
+    // 基于Selector的HTTP/1.1传输层，可替换JDK自带的HttpServer（-Dmirad.transport=nio）
+    // 空闲的keep-alive连接只占用selector上的一个注册，不占线程；请求头完整后整个连接交给执行器，
+    // 处理器仍按阻塞方式读写请求体/响应体，响应结束后连接交还selector。同一连接上已到达的流水线请求
+    // 直接在当前线程依次处理，响应顺序与请求顺序一致
+    static class NioHttpServer extends HttpServer {
+        private static final int MAX_HEADER_SIZE = 16 * 1024;
+        private static final int SELECTORS = Integer.getInteger("mirad.nio.selectors",
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+        private static final long IDLE_TIMEOUT = Long.getLong("mirad.nio.idleTimeout", 60) * 1000;
+        private static final int READ_TIMEOUT = Integer.getInteger("mirad.nio.readTimeout", 60) * 1000;
+        private static final boolean TCP_NODELAY = !"false".equals(System.getProperty("mirad.nio.tcpNoDelay"));
+        private static final int SEND_BUFFER = Integer.getInteger("mirad.nio.sendBuffer", 0); // 0=系统默认
+        private static final int RECEIVE_BUFFER = Integer.getInteger("mirad.nio.receiveBuffer", 0);
+        private static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("mirad.nio.maxRequests", 10000);
+        private static final long DRAIN_LIMIT = 64 * 1024; // 处理器未读完的请求体超过该值时直接关闭连接
+        
+        private final List<NioContext> contexts = new CopyOnWriteArrayList<>();
+        private final AtomicInteger activeExchanges = new AtomicInteger();
+        private ServerSocketChannel serverChannel;
+        private IoLoop[] loops;
+        private Thread acceptor;
+        private volatile Executor executor;
+        private volatile boolean stopping;
+        
+        static NioHttpServer open(InetSocketAddress address, int backlog) throws IOException {
+            NioHttpServer server = new NioHttpServer();
+            server.bind(address, backlog);
+            return server;
+        }
+        
+        @Override
+        public void bind(InetSocketAddress address, int backlog) throws IOException {
+            if (serverChannel != null) {
+                throw new BindException("已绑定");
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (RECEIVE_BUFFER > 0) {
+                // 接收缓冲区需在listen前设置，才能用于窗口缩放协商
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
             }
+            serverChannel.bind(address, backlog > 0 ? backlog : Integer.getInteger("mirad.nio.backlog", 1024));
         }
-
-        // 注册新用户
-        static boolean registerUser(String username, String password) {
+        
+        @Override
+        public void start() {
+            if (serverChannel == null || acceptor != null) {
+                throw new IllegalStateException("服务器未绑定或已启动");
+            }
+            if (executor == null) {
+                executor = Runnable::run;
+            }
             try {
-                // 验证用户名格式
-                if (!isValidUsername(username)) { // 修复后正确调用
-                    return false;
-                }
-
-                Path userFile = Paths.get(USERS_DIR, username + ".user");
-                if (Files.exists(userFile)) {
-                    return false; // 用户已存在
+                loops = new IoLoop[SELECTORS];
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = new IoLoop(i);
+                    loops[i].start();
                 }
-
-                // 创建用户文件和专属上传目录
-                String passwordHash = hashPassword(password);
-                Files.write(userFile, passwordHash.getBytes(StandardCharsets.UTF_8));
-                Files.createDirectories(Paths.get(UPLOAD_DIR, username));
-
-                return true;
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+            // 阻塞accept，新连接轮流分配给各个selector
+            acceptor = new Thread(() -> {
+                int next = 0;
+                while (!stopping) {
+                    try {
+                        SocketChannel channel = serverChannel.accept();
+                        configure(channel);
+                        loops[Math.floorMod(next++, loops.length)].register(new NioConnection(this, channel));
+                    } catch (ClosedChannelException e) {
+                        break;
+                    } catch (IOException e) {
+                        if (!stopping) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }, "nio-acceptor");
+            acceptor.start();
         }
-
-        // 生成密码哈希
-        static String hashPassword(String password) throws NoSuchAlgorithmException {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = md.digest(password.getBytes(StandardCharsets.UTF_8));
-
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hashBytes) {
-                sb.append(String.format("%02x", b));
+        
+        private static void configure(SocketChannel channel) throws IOException {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, TCP_NODELAY);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            if (SEND_BUFFER > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
             }
-            return sb.toString();
-        }
-
-        static boolean isValidUsername(String username) {
-            // 只允许字母、数字、下划线，长度3-20
-            return username != null && Pattern.matches("^[a-zA-Z0-9_]{3,20}$", username);
+            channel.socket().setSoTimeout(READ_TIMEOUT);
         }
-
-        // 获取用户的上传目录
-        static String getUserUploadDir(String username) {
-            return Paths.get(UPLOAD_DIR, username).toString();
+        
+        @Override
+        public void setExecutor(Executor executor) {
+            this.executor = executor;
         }
-    }
-
-    // 会话管理工具类（修复方法名）
-    static class SessionManager {
-        private static final Map<String, Session> sessions = new HashMap<>();
-        private static final long SESSION_TIMEOUT = 3600 * 1000; // 1小时
-
-        // 创建新会话
-        static String createSession(String username) {
-            String sessionId = UUID.randomUUID().toString();
-            Session session = new Session(sessionId, username, System.currentTimeMillis());
-            sessions.put(sessionId, session);
-            return sessionId;
+        
+        @Override
+        public Executor getExecutor() {
+            return executor;
         }
-
-        static String validateSession(String sessionId) {
-            if (sessionId == null) return null;
-
-            Session session = sessions.get(sessionId);
-            if (session == null) return null;
-
-            // 检查会话是否过期
-            if (System.currentTimeMillis() - session.timestamp > SESSION_TIMEOUT) {
-                sessions.remove(sessionId);
-                return null;
+        
+        // 停止接收新连接，等待进行中的请求最多delay秒后关闭全部连接
+        @Override
+        public void stop(int delay) {
+            stopping = true;
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            long deadline = System.currentTimeMillis() + delay * 1000L;
+            while (activeExchanges.get() > 0 && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (loops != null) {
+                for (IoLoop loop : loops) {
+                    loop.shutdown();
+                }
             }
-
-            // 更新会话时间戳
-            session.timestamp = System.currentTimeMillis();
-            return session.username;
         }
-
-        // 销毁会话
-        static void invalidateSession(String sessionId) {
-            sessions.remove(sessionId);
+        
+        @Override
+        public HttpContext createContext(String path, HttpHandler handler) {
+            NioContext context = createContext(path);
+            context.setHandler(handler);
+            return context;
         }
-
-        // 清理过期会话
-        static void cleanExpiredSessions() {
-            long now = System.currentTimeMillis();
-            sessions.values().removeIf(session -> now - session.timestamp > SESSION_TIMEOUT);
+        
+        @Override
+        public NioContext createContext(String path) {
+            if (path == null || !path.startsWith("/")) {
+                throw new IllegalArgumentException("无效的上下文路径: " + path);
+            }
+            for (NioContext context : contexts) {
+                if (context.path.equals(path)) {
+                    throw new IllegalArgumentException("上下文已存在: " + path);
+                }
+            }
+            NioContext context = new NioContext(this, path);
+            contexts.add(context);
+            return context;
         }
-
-        static class Session {
-            String id;
-            String username;
-            long timestamp;
-
-            Session(String id, String username, long timestamp) {
-                this.id = id;
-                this.username = username;
-                this.timestamp = timestamp;
+        
+        @Override
+        public void removeContext(String path) {
+            if (!contexts.removeIf(c -> c.path.equals(path))) {
+                throw new IllegalArgumentException("上下文不存在: " + path);
             }
         }
-    }
-
-    // 静态文件处理器
-    static class StaticFileHandler implements HttpHandler {
-        private final String baseDir;
-        public StaticFileHandler(String baseDir) {
-            this.baseDir = baseDir;
+        
+        @Override
+        public void removeContext(HttpContext context) {
+            if (!contexts.remove(context)) {
+                throw new IllegalArgumentException("上下文不存在: " + context.getPath());
+            }
         }
+        
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            String path = exchange.getRequestURI().getPath();
-            if (path.equals("/")) path = "/index.html";
-            
-            Path filePath = Paths.get(baseDir + path).normalize();
-            byte[] response;
-            String contentType = "text/html; charset=UTF-8";
-            
-            try {
-                if (Files.exists(filePath) && !Files.isDirectory(filePath)) {
-                    // 根据文件类型设置Content-Type
-                    if (path.endsWith(".css")) {
-                        contentType = "text/css; charset=UTF-8";
-                    } else if (path.endsWith(".js")) {
-                        contentType = "application/javascript; charset=UTF-8";
-                    } else if (path.endsWith(".png")) {
-                        contentType = "image/png";
-                    } else if (path.endsWith(".jpg") || path.endsWith(".jpeg")) {
-                        contentType = "image/jpeg";
-                    } else if (path.endsWith(".gif")) {
-                        contentType = "image/gif";
-                    } else if (path.endsWith(".ico")) {
-                        contentType = "image/x-icon";
-                    }
-                    
-                    response = Files.readAllBytes(filePath);
-                    exchange.getResponseHeaders().set("Content-Type", contentType);
-                    exchange.sendResponseHeaders(200, response.length);
-                } else {
-                    // 文件不存在时返回404
-                    response = "404 找不到资源".getBytes(StandardCharsets.UTF_8);
-                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
-                    exchange.sendResponseHeaders(404, response.length);
-                }
-                
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response);
+        public InetSocketAddress getAddress() {
+            try {
+                return (InetSocketAddress) serverChannel.getLocalAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        
+        // 与JDK一致：按前缀匹配，取最长的上下文路径
+        NioContext findContext(String path) {
+            NioContext best = null;
+            for (NioContext context : contexts) {
+                if (path.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) {
+                    best = context;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendErrorResponse(exchange, 500, "服务器内部错误: " + e.getMessage());
             }
+            return best;
         }
-    }
-
-    // 文件上传处理器
-    static class UploadHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            // 检查登录状态
-            String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
-            String username = SessionManager.validateSession(sessionId);
-            if (username == null) {
-                sendJsonError(exchange, 401, "请先登录");
-                return;
+        
+        static class NioContext extends HttpContext {
+            private final NioHttpServer server;
+            private final String path;
+            private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+            private final List<Filter> filters = new CopyOnWriteArrayList<>();
+            private volatile HttpHandler handler;
+            private volatile Authenticator authenticator;
+            
+            NioContext(NioHttpServer server, String path) {
+                this.server = server;
+                this.path = path;
             }
             
-            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                sendErrorResponse(exchange, 405, "方法不允许");
-                return;
+            @Override
+            public HttpHandler getHandler() {
+                return handler;
             }
             
-            try {
-                // 获取Content-Type
-                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
-                
-                // 检查是否是multipart/form-data
-                if (contentType == null || !contentType.startsWith("multipart/form-data")) {
-                    sendErrorResponse(exchange, 400, "无效的请求类型");
-                    return;
-                }
-                
-                // 获取boundary
-                String boundary = contentType.split("boundary=")[1];
-                byte[] boundaryBytes = ("--" + boundary).getBytes(StandardCharsets.UTF_8);
-                byte[] endBoundaryBytes = ("--" + boundary + "--").getBytes(StandardCharsets.UTF_8);
-                
-                List<Path> savedFiles = new ArrayList<>();
-                InputStream requestBody = exchange.getRequestBody();
-                
-                // 状态机变量
-                int state = 0; // 0=查找边界, 1=读取头部, 2=读取文件内容
-                int boundaryIndex = 0;
-                int endBoundaryIndex = 0;
-                FileChannel fileChannel = null;
-                ByteBuffer directBuffer = null;
-                String filename = null;
-                ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
-                ByteArrayOutputStream memoryBuffer = new ByteArrayOutputStream();
-                boolean inFile = false;
-                Path currentFilePath = null;
-                String userUploadDir = UserManager.getUserUploadDir(username);
-                
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead;
-                
-                while ((bytesRead = requestBody.read(buffer)) != -1) {
-                    for (int i = 0; i < bytesRead; i++) {
-                        byte b = buffer[i];
-                        
-                        switch (state) {
-                            case 0: // 查找边界
-                                if (b == boundaryBytes[boundaryIndex]) {
-                                    boundaryIndex++;
-                                    if (boundaryIndex == boundaryBytes.length) {
-                                        state = 1; // 进入头部读取
-                                        boundaryIndex = 0;
-                                        headerBuffer.reset();
-                                    }
-                                } else if (boundaryIndex > 0) {
-                                    // 边界匹配失败，重置
-                                    boundaryIndex = 0;
-                                }
-                                break;
-                                
-                            case 1: // 读取头部
-                                headerBuffer.write(b);
-                                // 检查是否到达头部结束 (两个CRLF)
-                                byte[] headerBytes = headerBuffer.toByteArray();
-                                int headerLen = headerBytes.length;
-                                if (headerLen >= 4 && 
-                                    headerBytes[headerLen-4] == '\r' && 
-                                    headerBytes[headerLen-3] == '\n' && 
-                                    headerBytes[headerLen-2] == '\r' && 
-                                    headerBytes[headerLen-1] == '\n') {
-                                    
-                                    // 解析头部
-                                    String headers = new String(headerBytes, 0, headerLen - 4, StandardCharsets.UTF_8);
-                                    filename = extractFilename(headers);
-                                    
-                                    if (filename != null && !filename.isEmpty()) {
-                                        filename = sanitizeFilename(filename);
-                                        currentFilePath = Paths.get(userUploadDir, filename);
-                                        
-                                        // 防止文件覆盖
-                                        if (Files.exists(currentFilePath)) {
-                                            filename = System.currentTimeMillis() + "_" + filename;
-                                            currentFilePath = Paths.get(userUploadDir, filename);
-                                        }
-                                        
-                                        // 使用FileChannel和直接缓冲区
-                                        fileChannel = FileChannel.open(currentFilePath, 
-                                            StandardOpenOption.CREATE, 
-                                            StandardOpenOption.WRITE);
-                                        directBuffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
-                                        inFile = true;
-                                        state = 2; // 进入文件内容读取
-                                        memoryBuffer.reset();
-                                    } else {
-                                        // 没有找到文件名，跳过这个部分
-                                        state = 3; // 跳过部分
-                                    }
-                                }
-                                break;
-                                
-                            case 2: // 读取文件内容
-                                if (b == boundaryBytes[boundaryIndex]) {
-                                    boundaryIndex++;
-                                    // 检查是否匹配完整边界
-                                    if (boundaryIndex == boundaryBytes.length) {
-                                        // 完成文件写入
-                                        if (fileChannel != null) {
-                                            // 写入内存缓冲区内容（减去边界部分）
-                                            if (memoryBuffer.size() > boundaryBytes.length) {
-                                                byte[] memBytes = memoryBuffer.toByteArray();
-                                                writeToBufferSafely(directBuffer, 
-                                                    Arrays.copyOfRange(memBytes, 0, memBytes.length - boundaryBytes.length),
-                                                    fileChannel);
-                                            }
-                                            
-                                            // 刷新直接缓冲区
-                                            flushBuffer(directBuffer, fileChannel);
-                                            
-                                            fileChannel.close();
-                                            savedFiles.add(currentFilePath);
-                                            fileChannel = null;
-                                            directBuffer = null;
-                                            inFile = false;
-                                        }
-                                        
-                                        // 重置状态
-                                        state = 1;
-                                        boundaryIndex = 0;
-                                        headerBuffer.reset();
-                                        memoryBuffer.reset();
-                                        continue;
-                                    }
-                                    
-                                    // 将当前字节存入内存缓冲区
-                                    memoryBuffer.write(b);
-                                    
-                                    // 如果内存缓冲区太大，写入文件并重置
-                                    if (memoryBuffer.size() > MAX_MEMORY) {
-                                        if (fileChannel != null && directBuffer != null) {
-                                            byte[] memBytes = memoryBuffer.toByteArray();
-                                            writeToBufferSafely(directBuffer, memBytes, fileChannel);
-                                        }
-                                        memoryBuffer.reset();
-                                    }
-                                } else {
-                                    // 边界匹配中断
-                                    if (boundaryIndex > 0) {
-                                        // 将已匹配的部分写入文件
-                                        if (fileChannel != null && directBuffer != null && memoryBuffer.size() > 0) {
-                                            byte[] memBytes = memoryBuffer.toByteArray();
-                                            writeToBufferSafely(directBuffer, memBytes, fileChannel);
-                                            memoryBuffer.reset();
-                                        }
-                                        boundaryIndex = 0;
-                                    }
-                                    
-                                    // 写入当前字节
-                                    if (fileChannel != null && directBuffer != null) {
-                                        // 检查缓冲区空间
-                                        if (!directBuffer.hasRemaining()) {
-                                            flushBuffer(directBuffer, fileChannel);
-                                        }
-                                        
-                                        // 将字节放入直接缓冲区
-                                        directBuffer.put(b);
-                                    }
-                                }
-                                break;
-                                
-                            case 3: // 跳过部分（无文件）
-                                if (b == boundaryBytes[boundaryIndex]) {
-                                    boundaryIndex++;
-                                    if (boundaryIndex == boundaryBytes.length) {
-                                        state = 1; // 回到头部读取
-                                        boundaryIndex = 0;
-                                        headerBuffer.reset();
-                                    }
-                                } else {
-                                    boundaryIndex = 0;
-                                }
-                                break;
-                        }
-                        
-                        // 检查结束边界
-                        if (b == endBoundaryBytes[endBoundaryIndex]) {
-                            endBoundaryIndex++;
-                            if (endBoundaryIndex == endBoundaryBytes.length) {
-                                // 结束处理
-                                if (inFile && fileChannel != null) {
-                                    // 写入剩余数据
-                                    if (memoryBuffer.size() > 0) {
-                                        byte[] memBytes = memoryBuffer.toByteArray();
-                                        writeToBufferSafely(directBuffer, memBytes, fileChannel);
-                                    }
-                                    
-                                    flushBuffer(directBuffer, fileChannel);
-                                    
-                                    fileChannel.close();
-                                    savedFiles.add(currentFilePath);
+            @Override
+            public void setHandler(HttpHandler handler) {
+                this.handler = handler;
+            }
+            
+            @Override
+            public String getPath() {
+                return path;
+            }
+            
+            @Override
+            public HttpServer getServer() {
+                return server;
+            }
+            
+            @Override
+            public Map<String, Object> getAttributes() {
+                return attributes;
+            }
+            
+            @Override
+            public List<Filter> getFilters() {
+                return filters;
+            }
+            
+            @Override
+            public Authenticator setAuthenticator(Authenticator auth) {
+                Authenticator old = authenticator;
+                authenticator = auth;
+                return old;
+            }
+            
+            @Override
+            public Authenticator getAuthenticator() {
+                return authenticator;
+            }
+        }
+        
+        // selector线程：等待空闲连接上的请求头，凑齐后把连接交给执行器
+        final class IoLoop extends Thread {
+            private final Selector selector;
+            private final Queue<NioConnection> pending = new ConcurrentLinkedQueue<>();
+            private volatile boolean running = true;
+            
+            IoLoop(int index) throws IOException {
+                super("nio-selector-" + index);
+                this.selector = Selector.open();
+            }
+            
+            // 任意线程调用：连接（重新）进入空闲等待
+            void register(NioConnection connection) {
+                connection.loop = this;
+                pending.add(connection);
+                selector.wakeup();
+            }
+            
+            void shutdown() {
+                running = false;
+                selector.wakeup();
+            }
+            
+            @Override
+            public void run() {
+                List<NioConnection> ready = new ArrayList<>();
+                long nextSweep = System.currentTimeMillis() + 1000;
+                while (running) {
+                    try {
+                        selector.select(1000);
+                        NioConnection connection;
+                        while ((connection = pending.poll()) != null) {
+                            try {
+                                connection.idleSince = System.currentTimeMillis();
+                                connection.channel.configureBlocking(false);
+                                connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                            } catch (IOException e) {
+                                connection.close();
+                            }
+                        }
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            NioConnection c = (NioConnection) key.attachment();
+                            if (key.isValid() && key.isReadable() && c.readHead()) {
+                                key.cancel();
+                                ready.add(c);
+                            }
+                        }
+                        if (!ready.isEmpty()) {
+                            // 注销在下一次select时才真正完成，之后才能切换为阻塞模式
+                            selector.selectNow();
+                            for (NioConnection c : ready) {
+                                dispatch(c);
+                            }
+                            ready.clear();
+                        }
+                        long now = System.currentTimeMillis();
+                        if (now >= nextSweep) {
+                            nextSweep = now + 1000;
+                            for (SelectionKey key : selector.keys()) {
+                                NioConnection c = (NioConnection) key.attachment();
+                                if (now - c.idleSince > IDLE_TIMEOUT) {
+                                    key.cancel();
+                                    c.close();
                                 }
-                                break;
                             }
-                        } else {
-                            endBoundaryIndex = 0;
                         }
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
                 }
-                
-                // 关闭最后一个文件流
-                if (inFile && fileChannel != null) {
-                    // 写入剩余数据
-                    if (memoryBuffer.size() > 0) {
-                        byte[] memBytes = memoryBuffer.toByteArray();
-                        writeToBufferSafely(directBuffer, memBytes, fileChannel);
-                    }
-                    
-                    flushBuffer(directBuffer, fileChannel);
-                    fileChannel.close();
+                for (SelectionKey key : selector.keys()) {
+                    ((NioConnection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            
+            private void dispatch(NioConnection connection) {
+                try {
+                    connection.channel.configureBlocking(true);
+                    executor.execute(connection);
+                } catch (Exception e) {
+                    // 执行器已关闭或拒绝
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    // 一个TCP连接：在selector线程中非阻塞地读请求头，在执行器线程中阻塞地处理请求
+    static final class NioConnection implements Runnable {
+        private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        
+        final NioHttpServer server;
+        final SocketChannel channel;
+        volatile NioHttpServer.IoLoop loop;
+        volatile long idleSince;
+        // 读缓冲区：[inPos, inLimit) 为已读入未消费的数据，可能包含请求体和后续流水线请求
+        final byte[] in = new byte[NioHttpServer.MAX_HEADER_SIZE];
+        int inPos;
+        int inLimit;
+        int headEnd = -1; // 已找到的请求头结束位置（含空行）
+        int served;
+        private InputStream socketIn;
+        
+        NioConnection(NioHttpServer server, SocketChannel channel) {
+            this.server = server;
+            this.channel = channel;
+        }
+        
+        // selector线程调用：读取可用数据，请求头完整时返回true；出错或对端关闭时关闭连接
+        boolean readHead() {
+            try {
+                if (findHeadEnd()) {
+                    return true;
+                }
+                compact();
+                int n = channel.read(ByteBuffer.wrap(in, inLimit, in.length - inLimit));
+                if (n < 0) {
+                    close();
+                    return false;
+                }
+                inLimit += n;
+                if (findHeadEnd()) {
+                    return true;
+                }
+                if (inLimit == in.length) {
+                    // 请求头过大，尽力返回431后关闭
+                    channel.write(ByteBuffer.wrap(("HTTP/1.1 431 Request Header Fields Too Large\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+                    close();
+                }
+                return false;
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+        
+        private boolean findHeadEnd() {
+            // 跳过请求之间多余的空行（RFC 7230 3.5）
+            while (inLimit - inPos >= 2 && in[inPos] == '\r' && in[inPos + 1] == '\n') {
+                inPos += 2;
+            }
+            for (int i = inPos; i + 3 < inLimit; i++) {
+                if (in[i + 3] == '\n' && in[i + 2] == '\r' && in[i + 1] == '\n' && in[i] == '\r') {
+                    headEnd = i + 4;
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private void compact() {
+            if (inPos > 0) {
+                System.arraycopy(in, inPos, in, 0, inLimit - inPos);
+                inLimit -= inPos;
+                inPos = 0;
+            }
+        }
+        
+        // 阻塞模式下补充读缓冲区，返回读到的字节数，对端关闭返回-1
+        int fill() throws IOException {
+            compact();
+            if (socketIn == null) {
+                // 通过socket适配器读取才能使SO_TIMEOUT生效
+                socketIn = channel.socket().getInputStream();
+            }
+            int n = socketIn.read(in, inLimit, in.length - inLimit);
+            if (n > 0) {
+                inLimit += n;
+            }
+            return n;
+        }
+        
+        int readDirect(byte[] b, int off, int len) throws IOException {
+            return socketIn().read(b, off, len);
+        }
+        
+        private InputStream socketIn() throws IOException {
+            if (socketIn == null) {
+                socketIn = channel.socket().getInputStream();
+            }
+            return socketIn;
+        }
+        
+        void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        
+        void writeFully(ByteBuffer[] buffers) throws IOException {
+            long remaining = 0;
+            for (ByteBuffer b : buffers) {
+                remaining += b.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+        
+        void sendContinue() throws IOException {
+            writeFully(ByteBuffer.wrap(CONTINUE));
+        }
+        
+        // 执行器线程：依次处理已缓冲的请求，之后把连接交还selector或关闭
+        @Override
+        public void run() {
+            boolean keepAlive;
+            server.activeExchanges.incrementAndGet();
+            try {
+                do {
+                    keepAlive = serveOne() && ++served < NioHttpServer.MAX_REQUESTS_PER_CONNECTION && !server.stopping;
+                } while (keepAlive && findHeadEnd());
+            } catch (IOException e) {
+                keepAlive = false;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                keepAlive = false;
+            } finally {
+                server.activeExchanges.decrementAndGet();
+            }
+            if (keepAlive) {
+                socketIn = null;
+                loop.register(this);
+            } else {
+                close();
+            }
+        }
+        
+        // 处理一个请求，返回连接是否可以继续使用
+        private boolean serveOne() throws IOException {
+            NioExchange exchange;
+            try {
+                exchange = NioExchange.parse(this, headEnd);
+            } catch (IllegalArgumentException | URISyntaxException e) {
+                writeFully(ByteBuffer.wrap(("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1)));
+                return false;
+            }
+            headEnd = -1;
+            
+            NioHttpServer.NioContext context = server.findContext(exchange.getRequestURI().getPath());
+            if (context == null || context.getHandler() == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return exchange.finish();
+            }
+            exchange.context = context;
+            try {
+                new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+            } catch (Exception e) {
+                if (!(e instanceof IOException)) {
+                    e.printStackTrace();
+                }
+                if (exchange.getResponseCode() == -1) {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                } else {
+                    return false; // 响应已部分发出，只能断开
+                }
+            }
+            return exchange.finish();
+        }
+        
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    static final class NioExchange extends HttpExchange {
+        private static volatile String cachedDate = "";
+        private static volatile long cachedDateSecond;
+        
+        final NioConnection connection;
+        final String method;
+        final URI uri;
+        final String protocol;
+        final Headers requestHeaders;
+        final Headers responseHeaders = new Headers();
+        final NioRequestBody requestBody;
+        final NioResponseBody responseBody;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final boolean requestWantsClose;
+        NioHttpServer.NioContext context;
+        private InputStream in;
+        private OutputStream out;
+        private int responseCode = -1;
+        private boolean closed;
+        
+        private NioExchange(NioConnection connection, String method, URI uri, String protocol, Headers requestHeaders,
+                            long contentLength, boolean chunked) {
+            this.connection = connection;
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = requestHeaders;
+            String connectionHeader = requestHeaders.getFirst("Connection");
+            boolean http10 = "HTTP/1.0".equals(protocol);
+            this.requestWantsClose = connectionHeader == null ? http10
+                : connectionHeader.toLowerCase(Locale.ROOT).contains("close")
+                    || (http10 && !connectionHeader.toLowerCase(Locale.ROOT).contains("keep-alive"));
+            boolean expectContinue = "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+            this.requestBody = new NioRequestBody(connection, contentLength, chunked, expectContinue && !http10);
+            this.responseBody = new NioResponseBody(this);
+            this.in = requestBody;
+            this.out = responseBody;
+        }
+        
+        // 解析 [inPos, headEnd) 中的请求头，消费后inPos指向请求体
+        static NioExchange parse(NioConnection c, int headEnd) throws URISyntaxException {
+            String head = new String(c.in, c.inPos, headEnd - c.inPos - 4, StandardCharsets.ISO_8859_1);
+            c.inPos = headEnd;
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                throw new IllegalArgumentException("无效的请求行");
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0 || lines[i].charAt(0) == ' ' || lines[i].charAt(0) == '\t') {
+                    throw new IllegalArgumentException("无效的请求头");
+                }
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            long contentLength = 0;
+            boolean chunked = false;
+            String transferEncoding = headers.getFirst("Transfer-Encoding");
+            if (transferEncoding != null) {
+                if (!"chunked".equalsIgnoreCase(transferEncoding.trim())) {
+                    throw new IllegalArgumentException("不支持的Transfer-Encoding");
+                }
+                chunked = true;
+            } else if (headers.containsKey("Content-Length")) {
+                List<String> values = headers.get("Content-Length");
+                contentLength = Long.parseLong(values.get(0).trim());
+                if (contentLength < 0 || values.stream().anyMatch(v -> !v.trim().equals(values.get(0).trim()))) {
+                    throw new IllegalArgumentException("无效的Content-Length");
+                }
+            }
+            return new NioExchange(c, requestLine[0], new URI(requestLine[1]), requestLine[2], headers,
+                contentLength, chunked);
+        }
+        
+        // 请求处理结束：补齐响应、丢弃未读完的请求体，返回连接是否可复用
+        boolean finish() throws IOException {
+            if (responseCode == -1) {
+                return false; // 处理器未发送响应
+            }
+            responseBody.close();
+            if (!responseBody.complete || requestWantsClose || responseBody.closeAfter) {
+                return false;
+            }
+            return requestBody.drain(NioHttpServer.DRAIN_LIMIT);
+        }
+        
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+        
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+        
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+        
+        @Override
+        public String getRequestMethod() {
+            return method;
+        }
+        
+        @Override
+        public HttpContext getHttpContext() {
+            return context;
+        }
+        
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                in.close();
+                if (responseCode != -1) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                // 与JDK实现一致，关闭时的错误不向处理器抛出
+            }
+        }
+        
+        @Override
+        public InputStream getRequestBody() {
+            return in;
+        }
+        
+        @Override
+        public OutputStream getResponseBody() {
+            return out;
+        }
+        
+        // 语义与JDK一致：length>0为定长，0为chunked，-1为无响应体
+        @Override
+        public void sendResponseHeaders(int code, long length) throws IOException {
+            if (responseCode != -1) {
+                throw new IOException("响应头已发送");
+            }
+            responseCode = code;
+            boolean head = "HEAD".equals(method);
+            boolean noBody = code < 200 || code == 204 || code == 304;
+            if (noBody) {
+                length = -1;
+            } else if (head) {
+                if (length > 0 && !responseHeaders.containsKey("Content-Length")) {
+                    responseHeaders.set("Content-Length", String.valueOf(length));
+                }
+                length = -1;
+            } else if (length > 0) {
+                responseHeaders.set("Content-Length", String.valueOf(length));
+            } else if (length == 0 && "HTTP/1.0".equals(protocol)) {
+                // HTTP/1.0客户端不认识chunked：直接发送响应体，以关闭连接标志结束
+                responseHeaders.set("Connection", "close");
+            } else if (length == 0) {
+                responseHeaders.set("Transfer-Encoding", "chunked");
+            } else {
+                responseHeaders.set("Content-Length", "0");
+            }
+            String connectionHeader = responseHeaders.getFirst("Connection");
+            if (connectionHeader != null && connectionHeader.toLowerCase(Locale.ROOT).contains("close")) {
+                responseBody.closeAfter = true;
+            } else if (requestWantsClose || connection.server.stopping) {
+                responseHeaders.set("Connection", "close");
+            }
+            if (!responseHeaders.containsKey("Date")) {
+                responseHeaders.set("Date", httpDate());
+            }
+            
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+            for (Map.Entry<String, List<String>> e : responseHeaders.entrySet()) {
+                for (String value : e.getValue()) {
+                    sb.append(e.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            sb.append("\r\n");
+            responseBody.begin(sb.toString().getBytes(StandardCharsets.ISO_8859_1), length,
+                length == 0 && !responseHeaders.containsKey("Transfer-Encoding"));
+        }
+        
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return (InetSocketAddress) connection.channel.socket().getRemoteSocketAddress();
+        }
+        
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+        
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return (InetSocketAddress) connection.channel.socket().getLocalSocketAddress();
+        }
+        
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+        
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+        
+        @Override
+        public void setAttribute(String name, Object value) {
+            if (value == null) {
+                attributes.remove(name);
+            } else {
+                attributes.put(name, value);
+            }
+        }
+        
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) {
+                in = i;
+            }
+            if (o != null) {
+                out = o;
+            }
+        }
+        
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+        
+        // Date头按秒缓存
+        private static String httpDate() {
+            long now = System.currentTimeMillis();
+            long second = now / 1000;
+            if (second != cachedDateSecond) {
+                cachedDate = formatHttpDate(now);
+                cachedDateSecond = second;
+            }
+            return cachedDate;
+        }
+        
+        private static String reason(int code) {
+            switch (code) {
+                case 100: return "Continue";
+                case 200: return "OK";
+                case 201: return "Created";
+                case 204: return "No Content";
+                case 206: return "Partial Content";
+                case 301: return "Moved Permanently";
+                case 302: return "Found";
+                case 304: return "Not Modified";
+                case 400: return "Bad Request";
+                case 401: return "Unauthorized";
+                case 403: return "Forbidden";
+                case 404: return "Not Found";
+                case 405: return "Method Not Allowed";
+                case 409: return "Conflict";
+                case 412: return "Precondition Failed";
+                case 413: return "Payload Too Large";
+                case 416: return "Range Not Satisfiable";
+                case 429: return "Too Many Requests";
+                case 500: return "Internal Server Error";
+                case 503: return "Service Unavailable";
+                default: return "Status";
+            }
+        }
+    }
+
+    // 请求体：先消费读缓冲区中的数据，再从socket读取，不会越过本请求的边界
+    static final class NioRequestBody extends InputStream implements FileTransferInput {
+        private final NioConnection connection;
+        private final boolean chunked;
+        private boolean expectContinue;
+        private long remaining; // 定长模式剩余字节；chunked模式为当前块剩余字节
+        private boolean eof;
+        private boolean firstChunk = true;
+        
+        NioRequestBody(NioConnection connection, long contentLength, boolean chunked, boolean expectContinue) {
+            this.connection = connection;
+            this.chunked = chunked;
+            this.remaining = chunked ? 0 : contentLength;
+            this.eof = !chunked && contentLength == 0;
+            this.expectContinue = expectContinue && !eof;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!prepare()) {
+                return -1;
+            }
+            NioConnection c = connection;
+            int n;
+            if (c.inLimit == c.inPos && len < 8192 && c.fill() < 0) {
+                // 小块读取先填充缓冲区，减少系统调用
+                throw new EOFException("请求体不完整");
+            }
+            if (c.inLimit > c.inPos) {
+                n = (int) Math.min(Math.min(len, remaining), c.inLimit - c.inPos);
+                System.arraycopy(c.in, c.inPos, b, off, n);
+                c.inPos += n;
+            } else {
+                // 缓冲区已空，直接读入调用方数组，最多读到本请求体结尾
+                n = c.readDirect(b, off, (int) Math.min(len, remaining));
+                if (n < 0) {
+                    throw new EOFException("请求体不完整");
+                }
+            }
+            remaining -= n;
+            if (!chunked && remaining == 0) {
+                eof = true;
+            }
+            return n;
+        }
+        
+        @Override
+        public int available() {
+            return eof ? 0 : (int) Math.min(remaining, connection.inLimit - connection.inPos);
+        }
+        
+        // 定位到下一段可读数据，请求体结束返回false
+        private boolean prepare() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (expectContinue) {
+                expectContinue = false;
+                connection.sendContinue();
+            }
+            if (chunked && remaining == 0) {
+                remaining = nextChunkSize();
+                if (remaining == 0) {
+                    // 跳过trailer直到空行
+                    while (!readLine().isEmpty()) {
+                        // 忽略
+                    }
+                    eof = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private long nextChunkSize() throws IOException {
+            String line = readLine();
+            if (line.isEmpty() && !firstChunk) {
+                line = readLine(); // 上一块数据后的CRLF
+            }
+            firstChunk = false;
+            int semicolon = line.indexOf(';');
+            try {
+                long size = Long.parseLong((semicolon >= 0 ? line.substring(0, semicolon) : line).trim(), 16);
+                if (size < 0) {
+                    throw new NumberFormatException();
+                }
+                return size;
+            } catch (NumberFormatException e) {
+                throw new IOException("无效的chunk长度: " + line);
+            }
+        }
+        
+        private String readLine() throws IOException {
+            NioConnection c = connection;
+            while (true) {
+                for (int i = c.inPos; i + 1 < c.inLimit; i++) {
+                    if (c.in[i] == '\r' && c.in[i + 1] == '\n') {
+                        String line = new String(c.in, c.inPos, i - c.inPos, StandardCharsets.ISO_8859_1);
+                        c.inPos = i + 2;
+                        return line;
+                    }
+                }
+                if (c.inLimit - c.inPos == c.in.length) {
+                    throw new IOException("chunk头过长");
+                }
+                if (c.fill() < 0) {
+                    throw new EOFException("请求体不完整");
+                }
+            }
+        }
+        
+        @Override
+        public boolean canTransfer() {
+            return !chunked;
+        }
+        
+        // 定长请求体：经读缓冲区直接写入文件通道，不再拷贝到处理器的堆内缓冲。
+        // 不用 FileChannel.transferFrom(SocketChannel)：它绕过socket适配器，SO_TIMEOUT不生效，
+        // 客户端发送一半后停住会一直占用执行器线程
+        @Override
+        public long transferTo(FileChannel target, long position, long count) throws IOException {
+            if (chunked) {
+                throw new IOException("chunked请求体不支持直接传输");
+            }
+            if (!prepare()) {
+                return -1;
+            }
+            NioConnection c = connection;
+            if (c.inLimit == c.inPos && c.fill() < 0) {
+                throw new EOFException("请求体不完整");
+            }
+            int buffered = (int) Math.min(Math.min(count, remaining), c.inLimit - c.inPos);
+            long n = 0;
+            ByteBuffer src = ByteBuffer.wrap(c.in, c.inPos, buffered);
+            while (src.hasRemaining()) {
+                n += target.write(src, position + n);
+            }
+            c.inPos += buffered;
+            remaining -= n;
+            if (remaining == 0) {
+                eof = true;
+            }
+            return n;
+        }
+        
+        // 丢弃未读的请求体，超过limit时放弃复用连接
+        boolean drain(long limit) throws IOException {
+            if (expectContinue) {
+                return false; // 未发送100 Continue，无法确定客户端是否还会发送请求体
+            }
+            byte[] skip = new byte[8192];
+            long drained = 0;
+            while (!eof) {
+                if (!chunked && remaining > limit - drained) {
+                    return false;
+                }
+                int n = read(skip, 0, skip.length);
+                if (n < 0) {
+                    break;
+                }
+                drained += n;
+                if (drained > limit) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public void close() {
+            // 连接由传输层管理，剩余数据在请求结束时丢弃
+        }
+    }
+
+    // 响应体：响应头与首段数据合并写出；定长模式校验长度，chunked模式自动分块；
+    // transferFrom 直接调用 FileChannel.transferTo(SocketChannel)，由内核完成文件到socket的拷贝
+    static final class NioResponseBody extends OutputStream implements FileTransferOutput {
+        private static final int BUFFER_SIZE = 32 * 1024;
+        private static final byte[] CRLF = {'\r', '\n'};
+        private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        
+        private final NioExchange exchange;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private boolean started;
+        private boolean chunked;
+        private boolean discard; // 无响应体（HEAD/204/304/-1）
+        private boolean untilClose; // 长度未知且不分块（HTTP/1.0），写完后关闭连接
+        private long remaining; // 定长模式剩余字节
+        private int chunkStart; // 缓冲区中当前chunk数据的起始位置
+        private boolean closed;
+        boolean complete; // 响应已按声明的长度完整发出
+        boolean closeAfter;
+        
+        NioResponseBody(NioExchange exchange) {
+            this.exchange = exchange;
+        }
+        
+        void begin(byte[] head, long length, boolean untilClose) throws IOException {
+            started = true;
+            discard = length < 0;
+            this.untilClose = untilClose;
+            chunked = length == 0 && !untilClose;
+            closeAfter |= untilClose;
+            remaining = length > 0 ? length : 0;
+            if (head.length > buffer.capacity()) {
+                exchange.connection.writeFully(ByteBuffer.wrap(head));
+            } else {
+                buffer.put(head);
+            }
+            chunkStart = buffer.position();
+            if (discard) {
+                // 没有响应体，立即发出响应头
+                flushBuffer();
+                complete = true;
+            }
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkWritable();
+            if (discard || len == 0) {
+                return;
+            }
+            if (!chunked && !untilClose) {
+                if (len > remaining) {
+                    throw new IOException("写入超过Content-Length");
+                }
+                remaining -= len;
+            }
+            if (len <= buffer.remaining()) {
+                buffer.put(b, off, len);
+                if (!buffer.hasRemaining()) {
+                    flushChunk();
+                }
+                return;
+            }
+            // 大块数据不经缓冲：与已缓冲的内容一次gather写出
+            if (chunked) {
+                // [响应头等非chunk数据][chunk头][已缓冲数据][b][CRLF]
+                int buffered = buffer.position() - chunkStart;
+                byte[] header = chunkHeader(buffered + len);
+                ByteBuffer prefix = ByteBuffer.wrap(buffer.array(), 0, chunkStart);
+                ByteBuffer data = ByteBuffer.wrap(buffer.array(), chunkStart, buffered);
+                exchange.connection.writeFully(new ByteBuffer[] {
+                    prefix, ByteBuffer.wrap(header), data, ByteBuffer.wrap(b, off, len), ByteBuffer.wrap(CRLF)});
+            } else {
+                buffer.flip();
+                exchange.connection.writeFully(new ByteBuffer[] {buffer, ByteBuffer.wrap(b, off, len)});
+            }
+            buffer.clear();
+            chunkStart = 0;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            checkWritable();
+            flushChunk();
+        }
+        
+        // 把缓冲区中的数据（chunked时包装为一个chunk）写出
+        private void flushChunk() throws IOException {
+            int buffered = buffer.position() - chunkStart;
+            if (chunked && buffered > 0) {
+                byte[] header = chunkHeader(buffered);
+                ByteBuffer prefix = ByteBuffer.wrap(buffer.array(), 0, chunkStart);
+                ByteBuffer data = ByteBuffer.wrap(buffer.array(), chunkStart, buffered);
+                exchange.connection.writeFully(new ByteBuffer[] {
+                    prefix, ByteBuffer.wrap(header), data, ByteBuffer.wrap(CRLF)});
+                buffer.clear();
+                chunkStart = 0;
+            } else {
+                flushBuffer();
+            }
+        }
+        
+        private void flushBuffer() throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                exchange.connection.writeFully(buffer);
+            }
+            buffer.clear();
+            chunkStart = 0;
+        }
+        
+        private static byte[] chunkHeader(long size) {
+            return (Long.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+        
+        private void checkWritable() throws IOException {
+            if (!started) {
+                throw new IOException("尚未发送响应头");
+            }
+            if (closed) {
+                throw new IOException("响应体已关闭");
+            }
+        }
+        
+        @Override
+        public boolean canTransfer() {
+            return true;
+        }
+        
+        @Override
+        public long transferFrom(FileChannel source, long position, long count) throws IOException {
+            checkWritable();
+            if (discard || count == 0) {
+                return count;
+            }
+            if (!chunked && !untilClose && count > remaining) {
+                throw new IOException("写入超过Content-Length");
+            }
+            long size = Math.min(count, source.size() - position);
+            if (size <= 0) {
+                return 0;
+            }
+            flushChunk();
+            if (chunked) {
+                exchange.connection.writeFully(ByteBuffer.wrap(chunkHeader(size)));
+            }
+            long sent = 0;
+            while (sent < size) {
+                long n = source.transferTo(position + sent, size - sent, exchange.connection.channel);
+                if (n <= 0) {
+                    break;
+                }
+                sent += n;
+            }
+            if (sent < size) {
+                throw new EOFException("文件在发送过程中被截断");
+            }
+            if (chunked) {
+                exchange.connection.writeFully(ByteBuffer.wrap(CRLF));
+            } else {
+                remaining -= sent;
+            }
+            return sent;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (closed || !started) {
+                return;
+            }
+            closed = true;
+            if (discard) {
+                return;
+            }
+            if (chunked) {
+                flushChunk();
+                exchange.connection.writeFully(ByteBuffer.wrap(LAST_CHUNK));
+                complete = true;
+            } else {
+                flushBuffer();
+                complete = untilClose || remaining == 0;
+                if (!complete) {
+                    throw new IOException("写入的字节数少于Content-Length");
+                }
+            }
+        }
+    }
+
+    // 用户管理工具类：启动时把全部凭证加载进内存索引，登录不再读文件；
+    // 注册时同步更新索引，外部对users目录的修改通过WatchService同步
+    static class UserManager {
+        private static final Map<String, byte[]> credentials = new ConcurrentHashMap<>();
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        // 加载全部用户凭证并开始监听users目录
+        static void loadAll() throws IOException {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(USERS_DIR), "*.user")) {
+                for (Path userFile : stream) {
+                    reloadUser(userFile);
+                }
+            }
+            System.out.println("已加载用户数: " + credentials.size());
+            startWatcher();
+        }
+
+        // 验证用户凭证
+        static boolean validateUser(String username, String password) {
+            if (username == null || password == null) {
+                return false;
+            }
+            byte[] storedHash = credentials.get(username);
+            if (storedHash == null) {
+                return false;
+            }
+            return MessageDigest.isEqual(storedHash, hashPasswordBytes(password));
+        }
+
+        // 注册新用户
+        static boolean registerUser(String username, String password) {
+            // 验证用户名格式
+            if (!isValidUsername(username)) {
+                return false;
+            }
+
+            byte[] passwordHash = hashPasswordBytes(password);
+            // 先占住索引中的用户名，保证并发注册同名用户只有一个成功
+            if (credentials.putIfAbsent(username, passwordHash) != null) {
+                return false; // 用户已存在
+            }
+
+            try {
+                // 创建用户文件和专属上传目录
+                Path userFile = Paths.get(USERS_DIR, username + ".user");
+                Files.write(userFile, toHex(passwordHash).getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+                Files.createDirectories(Paths.get(UPLOAD_DIR, username));
+                return true;
+            } catch (Exception e) {
+                e.printStackTrace();
+                credentials.remove(username, passwordHash);
+                return false;
+            }
+        }
+
+        // 生成密码哈希
+        static String hashPassword(String password) {
+            return toHex(hashPasswordBytes(password));
+        }
+
+        static byte[] hashPasswordBytes(String password) {
+            return SHA256.get().digest(password.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // 查表方式转十六进制，只分配一个char数组
+        static String toHex(byte[] bytes) {
+            char[] chars = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+                chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+            }
+            return new String(chars);
+        }
+
+        static boolean isValidUsername(String username) {
+            // 只允许字母、数字、下划线，长度3-20
+            return username != null && Pattern.matches("^[a-zA-Z0-9_]{3,20}$", username);
+        }
+
+        // 获取用户的上传目录
+        static String getUserUploadDir(String username) {
+            return Paths.get(UPLOAD_DIR, username).toString();
+        }
+
+        // 从用户文件重新加载一个用户，文件不存在时从索引移除
+        private static void reloadUser(Path userFile) {
+            String name = userFile.getFileName().toString();
+            if (!name.endsWith(".user")) {
+                return;
+            }
+            String username = name.substring(0, name.length() - ".user".length());
+            if (!isValidUsername(username)) {
+                return;
+            }
+            try {
+                if (!Files.exists(userFile)) {
+                    credentials.remove(username);
+                    return;
+                }
+                String content = new String(Files.readAllBytes(userFile), StandardCharsets.UTF_8).trim();
+                if (content.isEmpty()) {
+                    return; // 文件刚创建尚未写入，等待后续修改事件
+                }
+                byte[] hash = fromHex(content);
+                if (hash == null || hash.length != 32) {
+                    System.err.println("用户文件格式错误: " + userFile);
+                    return;
+                }
+                credentials.put(username, hash);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // 解析十六进制字符串，格式错误返回null
+        static byte[] fromHex(String hex) {
+            if (hex.length() % 2 != 0) {
+                return null;
+            }
+            byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                int hi = Character.digit(hex.charAt(i * 2), 16);
+                int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+                if (hi < 0 || lo < 0) {
+                    return null;
+                }
+                bytes[i] = (byte) ((hi << 4) | lo);
+            }
+            return bytes;
+        }
+
+        // 监听users目录，同步外部新增、修改、删除的用户文件
+        private static void startWatcher() throws IOException {
+            Path usersDir = Paths.get(USERS_DIR);
+            WatchService watchService = usersDir.getFileSystem().newWatchService();
+            usersDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            Thread watcher = new Thread(() -> {
+                while (true) {
+                    WatchKey key;
+                    try {
+                        key = watchService.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // 事件丢失时全量重新加载
+                            credentials.keySet().removeIf(u -> !Files.exists(Paths.get(USERS_DIR, u + ".user")));
+                            try (DirectoryStream<Path> stream = Files.newDirectoryStream(usersDir, "*.user")) {
+                                for (Path userFile : stream) {
+                                    reloadUser(userFile);
+                                }
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        } else {
+                            reloadUser(usersDir.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+            }, "users-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    // 会话管理工具类：并发Map存储，后台定时清理过期会话，总数有上限
+    // 每个用户最多 -Dmirad.session.perUser 个会话，超出时淘汰该用户自己最早的会话，反复登录不会挤掉其他用户
+    // 过期与全局淘汰按活动时间排序的队列处理，均摊O(1)，不再扫描全部会话
+    // -Dmirad.session.mode=token 时改用无状态的HMAC签名令牌，多个节点共享密钥即可互认
+    static class SessionManager {
+        private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+        private static final Map<String, ArrayDeque<Session>> userSessions = new ConcurrentHashMap<>();
+        // 按入队时间排列；会话活动后重新入队，旧条目出队时按queuedAt识别为过时并丢弃
+        private static final Queue<QueueEntry> activityQueue = new ConcurrentLinkedQueue<>();
+        private static final long SESSION_TIMEOUT = 3600 * 1000; // 1小时
+        private static final long TOUCH_INTERVAL = 1000; // 时间戳最多每秒刷新一次，减少热点写
+        private static final long REQUEUE_INTERVAL = 5 * 60 * 1000; // 活动会话最多每5分钟重新入队一次
+        private static final long SWEEP_INTERVAL = 60 * 1000;
+        private static final int MAX_SESSIONS = Integer.getInteger("mirad.session.max", 100000);
+        private static final int MAX_PER_USER = Integer.getInteger("mirad.session.perUser", 16);
+        private static final boolean TOKEN_MODE = "token".equalsIgnoreCase(System.getProperty("mirad.session.mode"));
+
+        // 启动后台清理线程
+        static void startSweeper() {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "session-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+            sweeper.scheduleWithFixedDelay(SessionManager::cleanExpiredSessions,
+                SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        // 创建新会话
+        static String createSession(String username) {
+            if (TOKEN_MODE) {
+                return TokenCodec.issue(username, System.currentTimeMillis() + SESSION_TIMEOUT);
+            }
+            String sessionId = UUID.randomUUID().toString();
+            long now = System.currentTimeMillis();
+            Session session = new Session(sessionId, username, now);
+            userSessions.compute(username, (user, owned) -> {
+                if (owned == null) {
+                    owned = new ArrayDeque<>();
+                }
+                owned.addLast(session);
+                while (owned.size() > MAX_PER_USER) {
+                    Session oldest = owned.pollFirst();
+                    sessions.remove(oldest.id, oldest);
+                }
+                return owned;
+            });
+            sessions.put(sessionId, session);
+            enqueue(session, now);
+            while (sessions.size() > MAX_SESSIONS && evictOldestSession()) {
+                // 继续淘汰直到回到上限以内
+            }
+            return sessionId;
+        }
+
+        static String validateSession(String sessionId) {
+            if (sessionId == null) return null;
+            if (TOKEN_MODE) {
+                return TokenCodec.verify(sessionId);
+            }
+
+            Session session = sessions.get(sessionId);
+            if (session == null) return null;
+
+            // 检查会话是否过期
+            long now = System.currentTimeMillis();
+            if (now - session.timestamp > SESSION_TIMEOUT) {
+                removeSession(session);
+                return null;
+            }
+
+            // 更新会话时间戳
+            if (now - session.timestamp > TOUCH_INTERVAL) {
+                session.timestamp = now;
+                if (now - session.queuedAt > REQUEUE_INTERVAL) {
+                    enqueue(session, now);
+                }
+            }
+            return session.username;
+        }
+
+        // 销毁会话
+        static void invalidateSession(String sessionId) {
+            if (TOKEN_MODE) {
+                TokenCodec.revoke(sessionId);
+                return;
+            }
+            Session session = sessions.get(sessionId);
+            if (session != null) {
+                removeSession(session);
+            }
+        }
+
+        // 当前会话数；令牌模式下会话不在服务端保存，返回已吊销且未过期的令牌数
+        static int size() {
+            return TOKEN_MODE ? TokenCodec.revoked.size() : sessions.size();
+        }
+
+        // 清理过期会话：从队头取出入队已超过超时时间的条目，只检查这些会话
+        static void cleanExpiredSessions() {
+            long now = System.currentTimeMillis();
+            QueueEntry entry;
+            while ((entry = activityQueue.peek()) != null && now - entry.queuedAt > SESSION_TIMEOUT) {
+                // 与淘汰并发时取到的可能是后一个条目，同样按是否过期处理
+                entry = activityQueue.poll();
+                if (entry == null) {
+                    break;
+                }
+                Session session = entry.session;
+                if (!isCurrent(entry)) {
+                    continue;
+                }
+                if (now - session.timestamp > SESSION_TIMEOUT) {
+                    removeSession(session);
+                } else {
+                    enqueue(session, now); // 入队后仍有活动但尚未重新入队
+                }
+            }
+            TokenCodec.revoked.values().removeIf(expiry -> expiry < now);
+        }
+
+        // 会话数超过上限时淘汰最久未活动的会话（精度为REQUEUE_INTERVAL），没有可淘汰的返回false
+        private static boolean evictOldestSession() {
+            QueueEntry entry;
+            while ((entry = activityQueue.poll()) != null) {
+                if (isCurrent(entry)) {
+                    removeSession(entry.session);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static void enqueue(Session session, long now) {
+            session.queuedAt = now;
+            activityQueue.add(new QueueEntry(session, now));
+        }
+
+        // 条目仍是该会话最新的一次入队，且会话未被删除
+        private static boolean isCurrent(QueueEntry entry) {
+            Session session = entry.session;
+            return session.queuedAt == entry.queuedAt && sessions.get(session.id) == session;
+        }
+
+        private static void removeSession(Session session) {
+            sessions.remove(session.id, session);
+            userSessions.computeIfPresent(session.username, (user, owned) -> {
+                owned.remove(session);
+                return owned.isEmpty() ? null : owned;
+            });
+        }
+
+        // 签名令牌：base64url("用户名:过期时间:随机数") + "." + base64url(HMAC-SHA256)
+        // 校验只需本地计算HMAC，登出的令牌记入本地吊销表直到其自然过期
+        static class TokenCodec {
+            private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+            private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+            private static final SecureRandom RANDOM = new SecureRandom();
+            static final Map<String, Long> revoked = new ConcurrentHashMap<>();
+            private static volatile byte[] secret;
+            private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+                try {
+                    Mac mac = Mac.getInstance("HmacSHA256");
+                    mac.init(new SecretKeySpec(secret(), "HmacSHA256"));
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            static String issue(String username, long expiry) {
+                byte[] nonce = new byte[8];
+                RANDOM.nextBytes(nonce);
+                String payload = ENCODER.encodeToString(
+                    (username + ":" + expiry + ":" + ENCODER.encodeToString(nonce)).getBytes(StandardCharsets.UTF_8));
+                return payload + "." + sign(payload);
+            }
+
+            // 校验通过返回用户名，否则返回null
+            static String verify(String token) {
+                int dot = token.indexOf('.');
+                if (dot <= 0) return null;
+                String payload = token.substring(0, dot);
+                byte[] expected = sign(payload).getBytes(StandardCharsets.US_ASCII);
+                byte[] actual = token.substring(dot + 1).getBytes(StandardCharsets.US_ASCII);
+                if (!MessageDigest.isEqual(expected, actual)) return null;
+
+                String[] fields;
+                try {
+                    fields = new String(DECODER.decode(payload), StandardCharsets.UTF_8).split(":");
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+                if (fields.length != 3) return null;
+                long expiry;
+                try {
+                    expiry = Long.parseLong(fields[1]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (expiry < System.currentTimeMillis() || revoked.containsKey(token)) return null;
+                return fields[0];
+            }
+
+            static void revoke(String token) {
+                if (verify(token) == null) return;
+                String payload = token.substring(0, token.indexOf('.'));
+                long expiry = Long.parseLong(
+                    new String(DECODER.decode(payload), StandardCharsets.UTF_8).split(":")[1]);
+                revoked.put(token, expiry);
+            }
+
+            private static String sign(String payload) {
+                return ENCODER.encodeToString(MAC.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII)));
+            }
+
+            // 密钥优先取 -Dmirad.session.secret，否则使用 users/.session-secret（不存在时随机生成），重启后令牌仍有效
+            private static byte[] secret() {
+                if (secret != null) return secret;
+                synchronized (TokenCodec.class) {
+                    if (secret != null) return secret;
+                    String configured = System.getProperty("mirad.session.secret");
+                    try {
+                        if (configured != null && !configured.isEmpty()) {
+                            secret = configured.getBytes(StandardCharsets.UTF_8);
+                        } else {
+                            Path secretFile = Paths.get(USERS_DIR, ".session-secret");
+                            if (!Files.exists(secretFile)) {
+                                byte[] generated = new byte[32];
+                                RANDOM.nextBytes(generated);
+                                Files.write(secretFile, Base64.getEncoder().encode(generated),
+                                    StandardOpenOption.CREATE_NEW);
+                            }
+                            secret = Base64.getDecoder().decode(Files.readAllBytes(secretFile));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("无法读取会话密钥", e);
+                    }
+                    return secret;
+                }
+            }
+        }
+
+        static class Session {
+            final String id;
+            final String username;
+            volatile long timestamp;
+            // 最近一次进入activityQueue的时间
+            volatile long queuedAt;
+
+            Session(String id, String username, long timestamp) {
+                this.id = id;
+                this.username = username;
+                this.timestamp = timestamp;
+            }
+        }
+
+        private static final class QueueEntry {
+            final Session session;
+            final long queuedAt;
+
+            QueueEntry(Session session, long queuedAt) {
+                this.session = session;
+                this.queuedAt = queuedAt;
+            }
+        }
+    }
+
+    // 存储用量统计：每个用户的已用字节数和文件数保存在内存计数器中，上传、删除时增量更新，查询为O(1)
+    // 计数定期写入users/usage.properties；正常退出时写入clean标记，下次启动直接采用，
+    // 否则（首次启动、异常退出）并行遍历各用户目录重建。绕过服务器直接改动上传目录不会计入，重启重建后修正
+    // 配额：-Dmirad.quota.default 默认配额字节数（0为不限），users/quotas.properties 中按用户覆盖（用户名=字节数）
+    static class UsageManager {
+        private static final Path USAGE_FILE = Paths.get(USERS_DIR, "usage.properties");
+        private static final Path QUOTA_FILE = Paths.get(USERS_DIR, "quotas.properties");
+        private static final long DEFAULT_QUOTA = Long.getLong("mirad.quota.default", 0);
+        private static final long PERSIST_INTERVAL = 30 * 1000; // 30秒
+        
+        private static final Map<String, Usage> usages = new ConcurrentHashMap<>();
+        private static final Map<String, Long> quotas = new ConcurrentHashMap<>();
+        private static volatile boolean dirty;
+        
+        static final class Usage {
+            final AtomicLong bytes = new AtomicLong();
+            final AtomicLong files = new AtomicLong();
+            // 写入中、尚未提交的字节，防止并发上传一起越过配额
+            final AtomicLong reserved = new AtomicLong();
+        }
+        
+        static void init() throws IOException {
+            if (Files.exists(QUOTA_FILE)) {
+                Properties props = new Properties();
+                try (InputStream is = Files.newInputStream(QUOTA_FILE)) {
+                    props.load(is);
+                }
+                for (String username : props.stringPropertyNames()) {
+                    try {
+                        quotas.put(username, Long.parseLong(props.getProperty(username).trim()));
+                    } catch (NumberFormatException e) {
+                        System.err.println("配额格式错误: " + username);
+                    }
+                }
+            }
+            
+            long start = System.currentTimeMillis();
+            if (!loadSnapshot()) {
+                rebuild();
+                System.out.println("重建存储用量: " + usages.size() + " 个用户，耗时 "
+                    + (System.currentTimeMillis() - start) + "ms");
+            }
+            // 立即写回不带clean标记的快照，本次运行异常退出时下次启动会重建
+            persist(false);
+            
+            ScheduledExecutorService persister = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "usage-persister");
+                t.setDaemon(true);
+                return t;
+            });
+            persister.scheduleWithFixedDelay(() -> {
+                if (dirty) {
+                    persist(false);
+                }
+            }, PERSIST_INTERVAL, PERSIST_INTERVAL, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> persist(true), "usage-shutdown"));
+        }
+        
+        private static boolean loadSnapshot() throws IOException {
+            if (!Files.exists(USAGE_FILE)) {
+                return false;
+            }
+            Properties props = new Properties();
+            try (InputStream is = Files.newInputStream(USAGE_FILE)) {
+                props.load(is);
+            }
+            if (!"true".equals(props.getProperty(".clean"))) {
+                return false;
+            }
+            for (String username : props.stringPropertyNames()) {
+                if (username.startsWith(".")) {
+                    continue;
+                }
+                String[] parts = props.getProperty(username).trim().split(" ");
+                try {
+                    Usage usage = usageOf(username);
+                    usage.bytes.set(Long.parseLong(parts[0]));
+                    usage.files.set(parts.length > 1 ? Long.parseLong(parts[1]) : 0);
+                } catch (NumberFormatException e) {
+                    usages.clear();
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        // 按用户并行遍历上传目录
+        private static void rebuild() throws IOException {
+            List<Path> userDirs = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(UPLOAD_DIR), Files::isDirectory)) {
+                stream.forEach(userDirs::add);
+            }
+            usages.clear();
+            userDirs.parallelStream().forEach(dir -> {
+                Usage usage = usageOf(dir.getFileName().toString());
+                try {
+                    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            if (attrs.isRegularFile()) {
+                                usage.bytes.addAndGet(attrs.size());
+                                usage.files.incrementAndGet();
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        
+        // 先写临时文件再原子替换，写入失败不影响上一次的快照
+        private static synchronized void persist(boolean clean) {
+            dirty = false;
+            Properties props = new Properties();
+            for (Map.Entry<String, Usage> entry : usages.entrySet()) {
+                props.setProperty(entry.getKey(), entry.getValue().bytes.get() + " " + entry.getValue().files.get());
+            }
+            if (clean) {
+                props.setProperty(".clean", "true");
+            }
+            Path tmp = USAGE_FILE.resolveSibling(USAGE_FILE.getFileName() + ".tmp");
+            try {
+                try (OutputStream os = Files.newOutputStream(tmp)) {
+                    props.store(os, null);
+                }
+                Files.move(tmp, USAGE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+                dirty = true;
+            }
+        }
+        
+        private static Usage usageOf(String username) {
+            return usages.computeIfAbsent(username, k -> new Usage());
+        }
+        
+        static long used(String username) {
+            Usage usage = usages.get(username);
+            return usage == null ? 0 : usage.bytes.get();
+        }
+        
+        static long fileCount(String username) {
+            Usage usage = usages.get(username);
+            return usage == null ? 0 : usage.files.get();
+        }
+        
+        // 0表示不限
+        static long quotaOf(String username) {
+            return quotas.getOrDefault(username, DEFAULT_QUOTA);
+        }
+        
+        // 提前判断：再写入bytes字节是否仍在配额内（用于按Content-Length在读取请求体之前拒绝）
+        static boolean fits(String username, long bytes) {
+            long quota = quotaOf(username);
+            if (quota <= 0) {
+                return true;
+            }
+            Usage usage = usageOf(username);
+            return usage.bytes.get() + usage.reserved.get() + bytes <= quota;
+        }
+        
+        // 预占写入中的字节，超出配额时不预占并返回false
+        static boolean reserve(String username, long bytes) {
+            long quota = quotaOf(username);
+            Usage usage = usageOf(username);
+            long reserved = usage.reserved.addAndGet(bytes);
+            if (quota > 0 && usage.bytes.get() + reserved > quota) {
+                usage.reserved.addAndGet(-bytes);
+                return false;
+            }
+            return true;
+        }
+        
+        // 恢复已经接受的预占（如重启后的续传任务），不检查配额
+        static void reserveUnchecked(String username, long bytes) {
+            usageOf(username).reserved.addAndGet(bytes);
+        }
+        
+        static void release(String username, long bytes) {
+            if (bytes != 0) {
+                usageOf(username).reserved.addAndGet(-bytes);
+            }
+        }
+        
+        static void fileAdded(String username, long size) {
+            Usage usage = usageOf(username);
+            usage.bytes.addAndGet(size);
+            usage.files.incrementAndGet();
+            dirty = true;
+        }
+        
+        static void fileRemoved(String username, long size) {
+            Usage usage = usageOf(username);
+            usage.bytes.addAndGet(-size);
+            usage.files.decrementAndGet();
+            dirty = true;
+        }
+    }
+    
+    // 超出存储配额，返回413
+    static class QuotaExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        QuotaExceededException() {
+            super("超出存储配额");
+        }
+    }
+
+    // 并发限制处理器：同一类端点共享一个信号量，没有空闲许可时立即返回503
+    // 不在池线程上排队等待，否则等待中的传输请求仍会占满为元数据端点预留的线程
+    static class ConcurrencyLimitHandler implements HttpHandler {
+        private final HttpHandler delegate;
+        private final Semaphore permits;
+        
+        ConcurrencyLimitHandler(HttpHandler delegate, Semaphore permits) {
+            this.delegate = delegate;
+            this.permits = permits;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!permits.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendJsonError(exchange, 503, "服务器繁忙，请稍后重试");
+                return;
+            }
+            try {
+                delegate.handle(exchange);
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    // 运行指标：按端点统计请求数、状态码、耗时直方图和收发字节数，由 /metrics 以Prometheus文本格式输出
+    static class Metrics {
+        private static final Map<String, HandlerStats> handlers = new ConcurrentHashMap<>();
+        private static volatile ExecutorService executor;
+        
+        static HandlerStats forHandler(String name) {
+            return handlers.computeIfAbsent(name, HandlerStats::new);
+        }
+        
+        static void setExecutor(ExecutorService executorService) {
+            executor = executorService;
+        }
+        
+        static final class HandlerStats {
+            final String name;
+            final LongAdder inFlight = new LongAdder();
+            final LongAdder bytesIn = new LongAdder();
+            final LongAdder bytesOut = new LongAdder();
+            final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+            final LatencyHistogram latency = new LatencyHistogram();
+            
+            HandlerStats(String name) {
+                this.name = name;
+            }
+            
+            void record(int status, long nanos) {
+                statuses.computeIfAbsent(status, k -> new LongAdder()).increment();
+                latency.record(nanos);
+            }
+        }
+        
+        // HdrHistogram式对数-线性分桶：[16·2^e, 32·2^e) 区间等分为16个宽2^e的子桶（相对误差不超过1/16），
+        // 小于16微秒时每微秒一个桶；记录只是原子自增。单位为微秒，覆盖到约2^45微秒，用于估算分位数
+        // 导出的Prometheus桶（le）另有精确计数，不受子桶边界与le不对齐的影响
+        static final class LatencyHistogram {
+            private static final int SUB_BITS = 4;
+            private static final int SUB_COUNT = 1 << SUB_BITS;
+            private static final int MAX_EXPONENT = 40;
+            static final double[] BOUNDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+            private static final long[] BOUND_MICROS = new long[BOUNDS.length];
+            static {
+                for (int i = 0; i < BOUNDS.length; i++) {
+                    BOUND_MICROS[i] = Math.round(BOUNDS[i] * 1e6);
+                }
+            }
+            
+            private final AtomicLongArray counts = new AtomicLongArray(bucketCount());
+            // boundCounts[i]：落在(BOUNDS[i-1], BOUNDS[i]]内的次数，最后一格为超过最大上界的次数
+            private final AtomicLongArray boundCounts = new AtomicLongArray(BOUNDS.length + 1);
+            private final LongAdder sumMicros = new LongAdder();
+            private final LongAdder total = new LongAdder();
+            
+            void record(long nanos) {
+                long micros = Math.max(0, nanos / 1000);
+                counts.incrementAndGet(indexOf(micros));
+                boundCounts.incrementAndGet(boundIndexOf(micros));
+                sumMicros.add(micros);
+                total.increment();
+            }
+            
+            static int bucketCount() {
+                return (MAX_EXPONENT + 2) * SUB_COUNT;
+            }
+            
+            static int indexOf(long micros) {
+                if (micros < SUB_COUNT) {
+                    return (int) micros;
+                }
+                int exponent = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+                if (exponent > MAX_EXPONENT) {
+                    return bucketCount() - 1;
+                }
+                int sub = (int) (micros >>> exponent) - SUB_COUNT;
+                return (exponent + 1) * SUB_COUNT + sub;
+            }
+            
+            // 桶的上界（微秒，不含）
+            static long upperBound(int index) {
+                if (index < SUB_COUNT) {
+                    return index + 1;
+                }
+                int exponent = index / SUB_COUNT - 1;
+                int sub = index % SUB_COUNT;
+                return (long) (SUB_COUNT + sub + 1) << exponent;
+            }
+            
+            // 第一个不小于micros的上界的下标（le语义为小于等于）
+            private static int boundIndexOf(long micros) {
+                int i = 0;
+                while (i < BOUND_MICROS.length && micros > BOUND_MICROS[i]) {
+                    i++;
+                }
+                return i;
+            }
+            
+            // 输出cumulative桶、_sum、_count
+            void write(StringBuilder out, String metric, String labels) {
+                long cumulative = 0;
+                for (int i = 0; i < BOUNDS.length; i++) {
+                    cumulative += boundCounts.get(i);
+                    out.append(metric).append("_bucket{").append(labels).append(",le=\"").append(BOUNDS[i]).append("\"} ")
+                        .append(cumulative).append('\n');
+                }
+                long count = cumulative + boundCounts.get(BOUNDS.length);
+                out.append(metric).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+                out.append(metric).append("_sum{").append(labels).append("} ").append(sumMicros.sum() / 1e6).append('\n');
+                out.append(metric).append("_count{").append(labels).append("} ").append(count).append('\n');
+            }
+            
+            // 由直方图估算的分位数（取所在桶的上界），单独作为gauge输出
+            void writeQuantiles(StringBuilder out, String metric, String labels) {
+                long[] snapshot = new long[counts.length()];
+                long count = 0;
+                for (int i = 0; i < snapshot.length; i++) {
+                    snapshot[i] = counts.get(i);
+                    count += snapshot[i];
+                }
+                for (double q : new double[] {0.5, 0.99, 0.999}) {
+                    out.append(metric).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+                        .append(quantile(snapshot, count, q) / 1e6).append('\n');
+                }
+            }
+            
+            private static long quantile(long[] snapshot, long count, double q) {
+                if (count == 0) {
+                    return 0;
+                }
+                long rank = (long) Math.ceil(q * count);
+                long seen = 0;
+                for (int i = 0; i < snapshot.length; i++) {
+                    seen += snapshot[i];
+                    if (seen >= rank) {
+                        return upperBound(i);
+                    }
+                }
+                return upperBound(snapshot.length - 1);
+            }
+        }
+        
+        static String render() {
+            StringBuilder out = new StringBuilder(8192);
+            List<HandlerStats> stats = new ArrayList<>(handlers.values());
+            stats.sort(Comparator.comparing(h -> h.name));
+            
+            out.append("# HELP mirad_http_requests_total 按端点和状态码统计的请求数\n");
+            out.append("# TYPE mirad_http_requests_total counter\n");
+            for (HandlerStats h : stats) {
+                for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(h.statuses).entrySet()) {
+                    out.append("mirad_http_requests_total{handler=\"").append(h.name).append("\",code=\"")
+                        .append(e.getKey()).append("\"} ").append(e.getValue().sum()).append('\n');
+                }
+            }
+            out.append("# HELP mirad_http_requests_in_flight 正在处理的请求数\n");
+            out.append("# TYPE mirad_http_requests_in_flight gauge\n");
+            for (HandlerStats h : stats) {
+                out.append("mirad_http_requests_in_flight{handler=\"").append(h.name).append("\"} ")
+                    .append(h.inFlight.sum()).append('\n');
+            }
+            out.append("# HELP mirad_http_request_bytes_total 请求体字节数\n");
+            out.append("# TYPE mirad_http_request_bytes_total counter\n");
+            for (HandlerStats h : stats) {
+                out.append("mirad_http_request_bytes_total{handler=\"").append(h.name).append("\"} ")
+                    .append(h.bytesIn.sum()).append('\n');
+            }
+            out.append("# HELP mirad_http_response_bytes_total 响应体字节数\n");
+            out.append("# TYPE mirad_http_response_bytes_total counter\n");
+            for (HandlerStats h : stats) {
+                out.append("mirad_http_response_bytes_total{handler=\"").append(h.name).append("\"} ")
+                    .append(h.bytesOut.sum()).append('\n');
+            }
+            out.append("# HELP mirad_http_request_duration_seconds 请求耗时（含响应体发送）\n");
+            out.append("# TYPE mirad_http_request_duration_seconds histogram\n");
+            for (HandlerStats h : stats) {
+                h.latency.write(out, "mirad_http_request_duration_seconds", "handler=\"" + h.name + "\"");
+            }
+            out.append("# HELP mirad_http_request_duration_quantile_seconds 请求耗时分位数（p50/p99/p999）\n");
+            out.append("# TYPE mirad_http_request_duration_quantile_seconds gauge\n");
+            for (HandlerStats h : stats) {
+                h.latency.writeQuantiles(out, "mirad_http_request_duration_quantile_seconds", "handler=\"" + h.name + "\"");
+            }
+            
+            gauge(out, "mirad_active_uploads", "正在进行的上传请求数（multipart与续传）",
+                forHandler("/upload").inFlight.sum() + forHandler("/resumable").inFlight.sum());
+            gauge(out, "mirad_resumable_uploads_pending", "未完成的续传任务数", ResumableUploadManager.pendingCount());
+            gauge(out, "mirad_sessions", "会话数（令牌模式下为已吊销令牌数）", SessionManager.size());
+            gauge(out, "mirad_disk_writer_queued_bytes", "已交给写盘线程、尚未写入文件的字节数", DiskWriter.queuedBytes());
+            ExecutorService pool = executor;
+            if (pool instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor tpe = (ThreadPoolExecutor) pool;
+                gauge(out, "mirad_executor_queue_depth", "等待执行的请求数", tpe.getQueue().size());
+                gauge(out, "mirad_executor_active_threads", "正在执行请求的线程数", tpe.getActiveCount());
+                gauge(out, "mirad_executor_pool_size", "线程池大小", tpe.getPoolSize());
+            }
+            List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+            out.append("# HELP mirad_jvm_buffer_used_bytes direct/mapped 缓冲区已用字节\n");
+            out.append("# TYPE mirad_jvm_buffer_used_bytes gauge\n");
+            for (BufferPoolMXBean bufferPool : bufferPools) {
+                out.append("mirad_jvm_buffer_used_bytes{pool=\"").append(bufferPool.getName().replace("\"", "'"))
+                    .append("\"} ").append(bufferPool.getMemoryUsed()).append('\n');
+            }
+            out.append("# HELP mirad_jvm_buffer_count direct/mapped 缓冲区个数\n");
+            out.append("# TYPE mirad_jvm_buffer_count gauge\n");
+            for (BufferPoolMXBean bufferPool : bufferPools) {
+                out.append("mirad_jvm_buffer_count{pool=\"").append(bufferPool.getName().replace("\"", "'"))
+                    .append("\"} ").append(bufferPool.getCount()).append('\n');
+            }
+            Runtime runtime = Runtime.getRuntime();
+            gauge(out, "mirad_jvm_heap_used_bytes", "堆内存已用字节", runtime.totalMemory() - runtime.freeMemory());
+            return out.toString();
+        }
+        
+        private static void gauge(StringBuilder out, String name, String help, long value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(value).append('\n');
+        }
+    }
+    
+    // 指标统计处理器：位于最外层，记录状态码和完整耗时，并替换请求/响应流以统计字节数
+    static class MetricsHandler implements HttpHandler {
+        private final Metrics.HandlerStats stats;
+        private final HttpHandler delegate;
+        
+        MetricsHandler(String name, HttpHandler delegate) {
+            this.stats = Metrics.forHandler(name);
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            stats.inFlight.increment();
+            exchange.setStreams(new CountingInputStream(exchange.getRequestBody(), stats.bytesIn),
+                new CountingOutputStream(exchange.getResponseBody(), stats.bytesOut));
+            try {
+                delegate.handle(exchange);
+            } finally {
+                stats.inFlight.decrement();
+                stats.record(exchange.getResponseCode(), System.nanoTime() - start);
+            }
+        }
+    }
+    
+    // 统计读取字节数；底层支持直接传输时同样透传，不破坏零拷贝
+    static final class CountingInputStream extends FilterInputStream implements FileTransferInput {
+        private final LongAdder counter;
+        
+        CountingInputStream(InputStream in, LongAdder counter) {
+            super(in);
+            this.counter = counter;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                counter.increment();
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counter.add(n);
+            }
+            return n;
+        }
+        
+        @Override
+        public boolean canTransfer() {
+            return in instanceof FileTransferInput && ((FileTransferInput) in).canTransfer();
+        }
+        
+        @Override
+        public long transferTo(FileChannel target, long position, long count) throws IOException {
+            long n = ((FileTransferInput) in).transferTo(target, position, count);
+            if (n > 0) {
+                counter.add(n);
+            }
+            return n;
+        }
+    }
+    
+    static final class CountingOutputStream extends FilterOutputStream implements FileTransferOutput {
+        private final LongAdder counter;
+        
+        CountingOutputStream(OutputStream out, LongAdder counter) {
+            super(out);
+            this.counter = counter;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+        
+        @Override
+        public boolean canTransfer() {
+            return out instanceof FileTransferOutput && ((FileTransferOutput) out).canTransfer();
+        }
+        
+        @Override
+        public long transferFrom(FileChannel source, long position, long count) throws IOException {
+            long n = ((FileTransferOutput) out).transferFrom(source, position, count);
+            counter.add(n);
+            return n;
+        }
+    }
+    
+    // 指标输出：默认只允许本机访问，-Dmirad.metrics.public=true 时对外开放
+    static class MetricsEndpointHandler implements HttpHandler {
+        private static final boolean PUBLIC = Boolean.getBoolean("mirad.metrics.public");
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!PUBLIC && !exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                sendErrorResponse(exchange, 403, "禁止访问");
+                return;
+            }
+            byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    // 令牌桶限速：请求数和传输字节数，分全局、每用户、每IP三级
+    // 速率单位为每秒，0表示不限；配置来自 -Dmirad.rate.<键>，并可写在 ratelimit.properties
+    // （路径由 -Dmirad.rate.config 指定）中，文件修改后5秒内生效，无需重启：
+    //   global.requests / user.requests / ip.requests   每秒请求数
+    //   global.bytes / user.bytes / ip.bytes            每秒字节数（上传和下载共用）
+    //   burst.seconds                                   允许的突发量，按秒数折算，默认1
+    static class RateLimiter {
+        private static final Path CONFIG_FILE = Paths.get(System.getProperty("mirad.rate.config", "ratelimit.properties"));
+        private static final String[] KEYS = {
+            "global.requests", "user.requests", "ip.requests", "global.bytes", "user.bytes", "ip.bytes", "burst.seconds"
+        };
+        // transferTo每次最多发送的字节数，限速时按片计费
+        static final long QUANTUM = 64 * 1024;
+        private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+        
+        private static volatile Config config = Config.load();
+        private static volatile long configModified;
+        
+        private static final TokenBucket globalRequests = new TokenBucket();
+        private static final TokenBucket globalBytes = new TokenBucket();
+        private static final Map<String, TokenBucket> userRequests = new ConcurrentHashMap<>();
+        private static final Map<String, TokenBucket> ipRequests = new ConcurrentHashMap<>();
+        private static final Map<String, TokenBucket> userBytes = new ConcurrentHashMap<>();
+        private static final Map<String, TokenBucket> ipBytes = new ConcurrentHashMap<>();
+        
+        static final class Config {
+            final double globalRequests, userRequests, ipRequests;
+            final double globalBytes, userBytes, ipBytes;
+            final long burstNanos;
+            
+            private Config(Properties props) {
+                globalRequests = rate(props, "global.requests");
+                userRequests = rate(props, "user.requests");
+                ipRequests = rate(props, "ip.requests");
+                globalBytes = rate(props, "global.bytes");
+                userBytes = rate(props, "user.bytes");
+                ipBytes = rate(props, "ip.bytes");
+                double burst = rate(props, "burst.seconds");
+                burstNanos = (long) ((burst > 0 ? burst : 1) * 1e9);
+            }
+            
+            boolean limitsBytes() {
+                return globalBytes > 0 || userBytes > 0 || ipBytes > 0;
+            }
+            
+            boolean limitsRequests() {
+                return globalRequests > 0 || userRequests > 0 || ipRequests > 0;
+            }
+            
+            private static double rate(Properties props, String key) {
+                try {
+                    return Math.max(0, Double.parseDouble(props.getProperty(key, "0").trim()));
+                } catch (NumberFormatException e) {
+                    System.err.println("限速配置格式错误: " + key);
+                    return 0;
+                }
+            }
+            
+            // 系统属性为默认值，配置文件中的同名键覆盖
+            static Config load() {
+                Properties props = new Properties();
+                for (String key : KEYS) {
+                    String value = System.getProperty("mirad.rate." + key);
+                    if (value != null) {
+                        props.setProperty(key, value);
+                    }
+                }
+                if (Files.isRegularFile(CONFIG_FILE)) {
+                    try (InputStream is = Files.newInputStream(CONFIG_FILE)) {
+                        props.load(is);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                return new Config(props);
+            }
+        }
+        
+        // 无锁令牌桶：只记录"令牌恰好用尽"的虚拟时刻，补充令牌即时间推移，取令牌为一次CAS
+        static final class TokenBucket {
+            // 新建的桶是满的：把用尽时刻放在足够久以前
+            private final AtomicLong emptyAt = new AtomicLong(System.nanoTime() - TimeUnit.HOURS.toNanos(1));
+            
+            // 取走n个令牌（允许透支），返回调用方需要等待的纳秒数
+            long take(long n, double rate, long burstNanos) {
+                long cost = (long) (n * 1e9 / rate);
+                while (true) {
+                    long now = System.nanoTime();
+                    long current = emptyAt.get();
+                    long next = Math.max(current, now - burstNanos) + cost;
+                    if (emptyAt.compareAndSet(current, next)) {
+                        return Math.max(0, next - now);
+                    }
+                }
+            }
+            
+            // 令牌足够时取走一个返回0，否则不取并返回还需等待的纳秒数
+            long tryTake(double rate, long burstNanos) {
+                long cost = (long) (1e9 / rate);
+                while (true) {
+                    long now = System.nanoTime();
+                    long current = emptyAt.get();
+                    long next = Math.max(current, now - burstNanos) + cost;
+                    if (next > now) {
+                        return next - now;
+                    }
+                    if (emptyAt.compareAndSet(current, next)) {
+                        return 0;
+                    }
+                }
+            }
+            
+            boolean idle(long now) {
+                return emptyAt.get() < now - IDLE_NANOS;
+            }
+        }
+        
+        // 一次传输的限速器：每次计费同时扣三级桶，等待时间取最长者
+        static final class Throttle {
+            private final TokenBucket user;
+            private final TokenBucket ip;
+            
+            private Throttle(TokenBucket user, TokenBucket ip) {
+                this.user = user;
+                this.ip = ip;
+            }
+            
+            void consume(long bytes) throws IOException {
+                if (bytes <= 0) {
+                    return;
+                }
+                Config c = config;
+                long wait = 0;
+                if (c.globalBytes > 0) {
+                    wait = globalBytes.take(bytes, c.globalBytes, c.burstNanos);
+                }
+                if (c.userBytes > 0 && user != null) {
+                    wait = Math.max(wait, user.take(bytes, c.userBytes, c.burstNanos));
+                }
+                if (c.ipBytes > 0) {
+                    wait = Math.max(wait, ip.take(bytes, c.ipBytes, c.burstNanos));
+                }
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("限速等待被中断");
+                    }
+                }
+            }
+            
+            // 按读取的块计费，不逐字节处理
+            InputStream wrap(InputStream in) {
+                return new FilterInputStream(in) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b != -1) {
+                            consume(1);
+                        }
+                        return b;
+                    }
+                    
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        consume(n);
+                        return n;
+                    }
+                };
+            }
+            
+            OutputStream wrap(OutputStream out) {
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        consume(1);
+                        out.write(b);
+                    }
+                    
+                    // 大块写入按片计费，避免一次等待很久后集中发出
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        while (len > 0) {
+                            int n = (int) Math.min(len, QUANTUM);
+                            consume(n);
+                            out.write(b, off, n);
+                            off += n;
+                            len -= n;
+                        }
+                    }
+                };
+            }
+        }
+        
+        // 启动配置文件检查和空闲桶清理
+        static void start() {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "rate-limiter");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(RateLimiter::maintain, 5, 5, TimeUnit.SECONDS);
+        }
+        
+        private static void maintain() {
+            try {
+                long modified = Files.isRegularFile(CONFIG_FILE) ? Files.getLastModifiedTime(CONFIG_FILE).toMillis() : 0;
+                if (modified != configModified) {
+                    configModified = modified;
+                    config = Config.load();
+                    System.out.println("限速配置已重新加载");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            long now = System.nanoTime();
+            for (Map<String, TokenBucket> buckets : Arrays.asList(userRequests, ipRequests, userBytes, ipBytes)) {
+                buckets.values().removeIf(bucket -> bucket.idle(now));
+            }
+        }
+        
+        // 未配置字节限速时返回null，传输路径保持原样
+        static Throttle forTransfer(HttpExchange exchange, String username) {
+            if (!config.limitsBytes()) {
+                return null;
+            }
+            return new Throttle(username == null ? null : userBytes.computeIfAbsent(username, k -> new TokenBucket()),
+                ipBytes.computeIfAbsent(clientIp(exchange), k -> new TokenBucket()));
+        }
+        
+        static InputStream wrap(InputStream in, Throttle throttle) {
+            return throttle == null ? in : throttle.wrap(in);
+        }
+        
+        static OutputStream wrap(OutputStream out, Throttle throttle) {
+            return throttle == null ? out : throttle.wrap(out);
+        }
+        
+        // 请求数限速，返回0表示放行，否则为建议的重试等待纳秒数
+        static long admitRequest(HttpExchange exchange) {
+            Config c = config;
+            if (!c.limitsRequests()) {
+                return 0;
+            }
+            // 只有配置了每用户限速才需要解析会话
+            String username = c.userRequests > 0 ? SessionManager.validateSession(
+                getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"))) : null;
+            long wait;
+            if (c.ipRequests > 0) {
+                wait = ipRequests.computeIfAbsent(clientIp(exchange), k -> new TokenBucket()).tryTake(c.ipRequests, c.burstNanos);
+                if (wait > 0) {
+                    return wait;
+                }
+            }
+            if (c.userRequests > 0 && username != null) {
+                wait = userRequests.computeIfAbsent(username, k -> new TokenBucket()).tryTake(c.userRequests, c.burstNanos);
+                if (wait > 0) {
+                    return wait;
+                }
+            }
+            if (c.globalRequests > 0) {
+                return globalRequests.tryTake(c.globalRequests, c.burstNanos);
+            }
+            return 0;
+        }
+        
+        private static String clientIp(HttpExchange exchange) {
+            return exchange.getRemoteAddress().getAddress().getHostAddress();
+        }
+    }
+    
+    // 请求数限速处理器：超出全局、用户或IP的请求速率时返回429
+    static class RateLimitHandler implements HttpHandler {
+        private final HttpHandler delegate;
+        
+        RateLimitHandler(HttpHandler delegate) {
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long wait = RateLimiter.admitRequest(exchange);
+            if (wait > 0) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999999999))));
+                sendJsonError(exchange, 429, "请求过于频繁，请稍后重试");
+                return;
+            }
+            delegate.handle(exchange);
+        }
+    }
+
+    // 静态文件处理器：文件内容及其gzip/deflate压缩版本缓存在内存中（按总字节数LRU淘汰），
+    // 带ETag/Last-Modified/Cache-Control，支持304；web目录有变化时清空缓存
+    // 超过缓存容量1/4的大文件不缓存，每次从磁盘流式发送，压缩时使用默认级别边读边压
+    static class StaticFileHandler implements HttpHandler {
+        private static final long CACHE_CAPACITY = Long.getLong("mirad.static.cacheBytes", 32L * 1024 * 1024);
+        private static final long MAX_CACHED_SIZE = CACHE_CAPACITY / 4;
+        private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+        static {
+            CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+            CONTENT_TYPES.put("htm", "text/html; charset=UTF-8");
+            CONTENT_TYPES.put("css", "text/css; charset=UTF-8");
+            CONTENT_TYPES.put("js", "application/javascript; charset=UTF-8");
+            CONTENT_TYPES.put("json", "application/json; charset=UTF-8");
+            CONTENT_TYPES.put("txt", "text/plain; charset=UTF-8");
+            CONTENT_TYPES.put("svg", "image/svg+xml");
+            CONTENT_TYPES.put("png", "image/png");
+            CONTENT_TYPES.put("jpg", "image/jpeg");
+            CONTENT_TYPES.put("jpeg", "image/jpeg");
+            CONTENT_TYPES.put("gif", "image/gif");
+            CONTENT_TYPES.put("ico", "image/x-icon");
+        }
+        
+        private final String baseDir;
+        private final Path basePath;
+        // 按访问顺序排列的LRU缓存
+        private final LinkedHashMap<String, Asset> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private long cachedBytes;
+        // 每次清空缓存时递增；加载期间发生变化的资源不放入缓存，避免缓存旧内容
+        private long generation;
+        
+        public StaticFileHandler(String baseDir) {
+            this.baseDir = baseDir;
+            this.basePath = Paths.get(baseDir).toAbsolutePath().normalize();
+            startWatcher();
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/")) path = "/index.html";
+            boolean head = "HEAD".equalsIgnoreCase(exchange.getRequestMethod());
+            
+            try {
+                Path filePath = Paths.get(baseDir + path).toAbsolutePath().normalize();
+                Asset asset = filePath.startsWith(basePath) ? getAsset(path, filePath) : null;
+                if (asset == null) {
+                    // 文件不存在时返回404
+                    byte[] response = "404 找不到资源".getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                    exchange.sendResponseHeaders(404, response.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(response);
+                    }
+                    return;
+                }
+                
+                // 选择压缩版本
+                String encoding = asset.compressible() ? negotiateEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding")) : null;
+                byte[] body = asset.raw;
+                String etag = "\"" + asset.hash + "\"";
+                if ("gzip".equals(encoding)) {
+                    body = asset.gzip;
+                    etag = "\"" + asset.hash + "-gz\"";
+                } else if ("deflate".equals(encoding)) {
+                    body = asset.deflate;
+                    etag = "\"" + asset.hash + "-df\"";
+                }
+                
+                Headers headers = exchange.getResponseHeaders();
+                headers.set("Content-Type", asset.contentType);
+                headers.set("ETag", etag);
+                headers.set("Last-Modified", asset.lastModifiedStr);
+                headers.set("Cache-Control", asset.contentType.startsWith("text/html") ? "no-cache" : "public, max-age=300");
+                if (asset.compressible()) {
+                    headers.set("Vary", "Accept-Encoding");
+                }
+                
+                if (isNotModified(exchange, asset)) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                
+                if (encoding != null) {
+                    headers.set("Content-Encoding", encoding);
+                }
+                if (asset.raw == null) {
+                    sendStreamed(exchange, asset, encoding, head);
+                    return;
+                }
+                if (head) {
+                    headers.set("Content-Length", String.valueOf(body.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendErrorResponse(exchange, 500, "服务器内部错误: " + e.getMessage());
+            }
+        }
+        
+        // 未缓存的大文件：原样发送时零拷贝，压缩时分块发送
+        private void sendStreamed(HttpExchange exchange, Asset asset, String encoding, boolean head) throws IOException {
+            if (head) {
+                if (encoding == null) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(asset.size));
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(asset.file, StandardOpenOption.READ)) {
+                if (encoding == null) {
+                    long size = channel.size();
+                    exchange.sendResponseHeaders(200, size);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        transferFully(channel, 0, size, os, null);
+                    }
+                    return;
+                }
+                exchange.sendResponseHeaders(200, 0);
+                Deflater deflater = "gzip".equals(encoding) ? null : new Deflater();
+                try (InputStream in = Channels.newInputStream(channel);
+                     OutputStream os = exchange.getResponseBody()) {
+                    OutputStream compressor = deflater == null
+                        ? new GZIPOutputStream(os, 64 * 1024)
+                        : new DeflaterOutputStream(os, deflater, 64 * 1024);
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) != -1) {
+                        compressor.write(buffer, 0, bytesRead);
+                    }
+                    compressor.close();
+                } finally {
+                    if (deflater != null) {
+                        deflater.end();
+                    }
+                }
+            }
+        }
+        
+        // If-None-Match优先，其次If-Modified-Since
+        private boolean isNotModified(HttpExchange exchange, Asset asset) {
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                return ifNoneMatch.contains("\"" + asset.hash);
+            }
+            String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            if (ifModifiedSince != null) {
+                try {
+                    long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+                    return asset.lastModified / 1000 <= since / 1000;
+                } catch (Exception e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+        
+        // 按Accept-Encoding的q值选择gzip或deflate
+        static String negotiateEncoding(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return null;
+            }
+            double gzipQ = 0;
+            double deflateQ = 0;
+            for (String token : acceptEncoding.split(",")) {
+                String[] parts = token.trim().split(";");
+                double q = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Double.parseDouble(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            q = 0;
+                        }
+                    }
+                }
+                String name = parts[0].trim().toLowerCase(Locale.ROOT);
+                if (name.equals("gzip") || name.equals("x-gzip")) {
+                    gzipQ = q;
+                } else if (name.equals("deflate")) {
+                    deflateQ = q;
+                } else if (name.equals("*")) {
+                    gzipQ = Math.max(gzipQ, q);
+                }
+            }
+            if (gzipQ > 0 && gzipQ >= deflateQ) {
+                return "gzip";
+            }
+            return deflateQ > 0 ? "deflate" : null;
+        }
+        
+        private Asset getAsset(String key, Path filePath) throws IOException {
+            long loadGeneration;
+            synchronized (cache) {
+                Asset cached = cache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+                loadGeneration = generation;
+            }
+            if (!Files.isRegularFile(filePath)) {
+                return null;
+            }
+            if (Files.size(filePath) > MAX_CACHED_SIZE) {
+                return Asset.describe(filePath, contentTypeOf(key));
+            }
+            Asset asset = Asset.load(filePath, contentTypeOf(key));
+            if (asset.footprint() <= MAX_CACHED_SIZE) {
+                synchronized (cache) {
+                    if (generation != loadGeneration) {
+                        return asset; // 加载期间目录有变化，本次照常返回但不缓存
+                    }
+                    Asset previous = cache.put(key, asset);
+                    if (previous != null) {
+                        cachedBytes -= previous.footprint();
+                    }
+                    cachedBytes += asset.footprint();
+                    // 超出容量时淘汰最久未访问的资源
+                    Iterator<Asset> it = cache.values().iterator();
+                    while (cachedBytes > CACHE_CAPACITY && it.hasNext()) {
+                        cachedBytes -= it.next().footprint();
+                        it.remove();
+                    }
+                }
+            }
+            return asset;
+        }
+        
+        private static String contentTypeOf(String path) {
+            int dot = path.lastIndexOf('.');
+            String ext = dot >= 0 ? path.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+            return CONTENT_TYPES.getOrDefault(ext, "text/html; charset=UTF-8");
+        }
+        
+        void invalidateAll() {
+            synchronized (cache) {
+                cache.clear();
+                cachedBytes = 0;
+                generation++;
+            }
+        }
+        
+        // 监听web目录（含子目录），任何变化都清空缓存
+        private void startWatcher() {
+            try {
+                WatchService watchService = FileSystems.getDefault().newWatchService();
+                Files.walkFileTree(basePath, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                Thread watcher = new Thread(() -> {
+                    while (true) {
+                        WatchKey key;
+                        try {
+                            key = watchService.take();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        key.pollEvents();
+                        invalidateAll();
+                        key.reset();
+                    }
+                }, "static-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            } catch (IOException e) {
+                System.err.println("无法监听静态资源目录，缓存不会自动失效: " + e.getMessage());
+            }
+        }
+        
+        static final class Asset {
+            final byte[] raw;     // 流式发送的大文件为null
+            final byte[] gzip;    // 不可压缩或压缩无收益时为null
+            final byte[] deflate;
+            final Path file;
+            final long size;
+            final String contentType;
+            final String hash;
+            final long lastModified;
+            final String lastModifiedStr;
+            
+            private Asset(byte[] raw, byte[] gzip, byte[] deflate, Path file, long size,
+                          String contentType, String hash, long lastModified) {
+                this.raw = raw;
+                this.gzip = gzip;
+                this.deflate = deflate;
+                this.file = file;
+                this.size = size;
+                this.contentType = contentType;
+                this.hash = hash;
+                this.lastModified = lastModified;
+                this.lastModifiedStr = formatHttpDate(lastModified);
+            }
+            
+            // 大文件只取元数据，ETag由修改时间和大小生成，不读取内容
+            static Asset describe(Path file, String contentType) throws IOException {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                long lastModified = attrs.lastModifiedTime().toMillis();
+                String hash = Long.toHexString(lastModified) + "-" + Long.toHexString(attrs.size());
+                return new Asset(null, null, null, file, attrs.size(), contentType, hash, lastModified);
+            }
+            
+            boolean compressible() {
+                return raw == null ? isCompressibleType(contentType) : gzip != null;
+            }
+            
+            static Asset load(Path file, String contentType) throws IOException {
+                long lastModified = Files.getLastModifiedTime(file).toMillis();
+                byte[] raw = Files.readAllBytes(file);
+                String hash = UserManager.toHex(UserManager.SHA256.get().digest(raw)).substring(0, 32);
+                byte[] gzip = null;
+                byte[] deflate = null;
+                if (isCompressibleType(contentType)) {
+                    gzip = compress(raw, true);
+                    deflate = compress(raw, false);
+                    if (gzip.length >= raw.length) {
+                        gzip = null;
+                        deflate = null;
+                    }
+                }
+                return new Asset(raw, gzip, deflate, file, raw.length, contentType, hash, lastModified);
+            }
+            
+            long footprint() {
+                return raw.length + (gzip != null ? gzip.length + deflate.length : 0);
+            }
+            
+            private static byte[] compress(byte[] data, boolean gzip) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 64);
+                // 只压缩一次，使用最高压缩级别
+                if (gzip) {
+                    try (GZIPOutputStream os = new GZIPOutputStream(out) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) {
+                        os.write(data);
+                    }
+                } else {
+                    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                    try (DeflaterOutputStream os = new DeflaterOutputStream(out, deflater)) {
+                        os.write(data);
+                    } finally {
+                        deflater.end();
+                    }
+                }
+                return out.toByteArray();
+            }
+        }
+    }
+
+    // 文件上传处理器
+    static class UploadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // 检查登录状态
+            String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
+            String username = SessionManager.validateSession(sessionId);
+            if (username == null) {
+                sendJsonError(exchange, 401, "请先登录");
+                return;
+            }
+            
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendErrorResponse(exchange, 405, "方法不允许");
+                return;
+            }
+            
+            UploadPartWriter writer = null;
+            try {
+                // 获取Content-Type
+                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                
+                // 检查是否是multipart/form-data
+                if (contentType == null || !contentType.startsWith("multipart/form-data")) {
+                    sendErrorResponse(exchange, 400, "无效的请求类型");
+                    return;
+                }
+                
+                // 获取boundary
+                String boundary = extractBoundary(contentType);
+                if (boundary == null || boundary.isEmpty()) {
+                    sendErrorResponse(exchange, 400, "缺少boundary参数");
+                    return;
+                }
+                
+                // 按Content-Length提前拒绝超出配额的上传，不读取请求体
+                long contentLength = parseLongHeader(exchange, "Content-Length");
+                if (contentLength > 0 && !UsageManager.fits(username, contentLength)) {
+                    sendJsonError(exchange, 413, "超出存储配额");
+                    return;
+                }
+                
+                // 请求级的Digest/Content-MD5针对整个请求体，边解析边计算
+                Checksums bodyChecksums = Checksums.fromHeaders(exchange.getRequestHeaders());
+                Checksums.Verifier bodyVerifier = bodyChecksums.isEmpty() ? null : new Checksums.Verifier(bodyChecksums, true);
+                InputStream body = RateLimiter.wrap(exchange.getRequestBody(), RateLimiter.forTransfer(exchange, username));
+                
+                writer = new UploadPartWriter(username, contentLength);
+                new MultipartParser(boundary, BUFFER_SIZE).parse(bodyVerifier == null ? body : bodyVerifier.wrap(body), writer);
+                if (bodyVerifier != null) {
+                    // 解析器在结束边界处停止，把剩余的结尾部分也计入
+                    InputStream rest = bodyVerifier.wrap(body);
+                    byte[] skip = new byte[1024];
+                    while (rest.read(skip) != -1) {
+                        // 丢弃
+                    }
+                    bodyVerifier.verify(null);
+                }
+                List<Path> savedFiles = writer.savedFiles;
+                
+                if (savedFiles.isEmpty()) {
+                    sendJsonError(exchange, 400, "未找到有效文件");
+                } else {
+                    // 返回成功响应，附带每个文件的sha256
+                    StringBuilder json = new StringBuilder(String.format(
+                        "{\"success\": true, \"count\": %d, \"message\": \"成功上传 %d 个文件\", \"files\": [",
+                        savedFiles.size(), savedFiles.size()));
+                    for (int i = 0; i < savedFiles.size(); i++) {
+                        json.append(i > 0 ? ", " : "").append("{\"name\": \"");
+                        appendJsonEscaped(json, savedFiles.get(i).getFileName().toString());
+                        json.append("\", \"sha256\": \"").append(writer.savedHashes.get(i)).append("\"}");
+                    }
+                    json.append("]}");
+                    sendJsonResponse(exchange, 200, json.toString());
+                }
+            } catch (ChecksumMismatchException e) {
+                if (writer != null) {
+                    writer.abort();
+                }
+                sendJsonError(exchange, 400, "校验和不匹配: " + e.getMessage());
+            } catch (QuotaExceededException e) {
+                if (writer != null) {
+                    writer.abort();
+                }
+                sendJsonError(exchange, 413, e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (writer != null) {
+                    writer.abort();
+                }
+                sendJsonError(exchange, 500, "上传失败: " + e.getMessage());
+            }
+        }
+        
+        // 从Content-Type中提取boundary（支持带引号和后续参数）
+        private String extractBoundary(String contentType) {
+            for (String part : contentType.split(";")) {
+                part = part.trim();
+                if (part.startsWith("boundary=")) {
+                    String boundary = part.substring("boundary=".length());
+                    if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                        boundary = boundary.substring(1, boundary.length() - 1);
+                    }
+                    return boundary;
+                }
+            }
+            return null;
+        }
+        
+        // 提取文件名
+        static String extractFilename(String headers) {
+            for (String line : headers.split("\r\n")) {
+                if (line.regionMatches(true, 0, "Content-Disposition:", 0, "Content-Disposition:".length())) {
+                    String[] parts = line.split(";");
+                    for (String part : parts) {
+                        part = part.trim();
+                        if (part.startsWith("filename=")) {
+                            String filename = part.substring("filename=".length());
+                            if (filename.startsWith("\"") && filename.endsWith("\"")) {
+                                filename = filename.substring(1, filename.length() - 1);
+                            }
+                            try {
+                                filename = URLDecoder.decode(filename, StandardCharsets.UTF_8.name());
+                                return filename;
+                            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                                e.printStackTrace();
+                            }
+                            return filename;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+        
+        // 清理文件名
+        static String sanitizeFilename(String filename) {
+            filename = filename.replace("\\", "/");
+            int lastSlash = filename.lastIndexOf("/");
+            if (lastSlash != -1) {
+                filename = filename.substring(lastSlash + 1);
+            }
+            // 过滤非法字符，保留中文、字母、数字和部分符号
+            return filename.replaceAll("[^\\p{L}\\p{N}\\p{P}\\p{Z}]", "_");
+        }
+        
+        // 从Content-Disposition中提取表单字段名
+        private static String extractFieldName(String headers) {
+            for (String line : headers.split("\r\n")) {
+                if (line.regionMatches(true, 0, "Content-Disposition:", 0, "Content-Disposition:".length())) {
+                    for (String part : line.split(";")) {
+                        part = part.trim();
+                        if (part.startsWith("name=")) {
+                            String name = part.substring("name=".length());
+                            if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+                                name = name.substring(1, name.length() - 1);
+                            }
+                            return name;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+        
+        // 将multipart中的文件part直接写入用户目录
+        // 文件part头部的Digest/Content-MD5，或紧邻其前的表单字段sha256，用于校验该文件
+        static class UploadPartWriter implements MultipartParser.PartListener {
+            private static final int MAX_FIELD_SIZE = 256;
+            
+            private final String username;
+            private final String userUploadDir;
+            final List<Path> savedFiles = new ArrayList<>();
+            final List<String> savedHashes = new ArrayList<>();
+            private BlobStore.BlobWriter blobWriter;
+            private String currentFilename;
+            // 当前文件已写入并预占配额的字节数
+            private long written;
+            // 正在读取的sha256表单字段，以及它给出的、留给下一个文件的校验值
+            private ByteArrayOutputStream checksumField;
+            private Checksums pendingChecksums;
+            // 请求体长度，是第一个文件大小的上界，用于预分配；之后的文件不再预分配
+            private long sizeHint;
+            
+            UploadPartWriter(String username, long sizeHint) {
+                this.username = username;
+                this.userUploadDir = UserManager.getUserUploadDir(username);
+                this.sizeHint = sizeHint;
+            }
+            
+            @Override
+            public void startPart(String headers) throws IOException {
+                String filename = extractFilename(headers);
+                if (filename == null || filename.isEmpty()) {
+                    // 没有找到文件名，只留意校验和字段，其余部分跳过
+                    if ("sha256".equals(extractFieldName(headers))) {
+                        checksumField = new ByteArrayOutputStream();
+                    }
+                    return;
+                }
+                
+                Checksums expected = pendingChecksums != null ? pendingChecksums : new Checksums();
+                pendingChecksums = null;
+                expected.merge(Checksums.fromPartHeaders(headers));
+                
+                currentFilename = sanitizeFilename(filename);
+                // 内容先写入内容寻址存储的临时文件，边写边计算哈希
+                blobWriter = BlobStore.newWriter();
+                blobWriter.expect(expected);
+                // 多出的部分在提交时截掉
+                blobWriter.preallocate(sizeHint);
+                sizeHint = 0;
+            }
+            
+            @Override
+            public void partData(byte[] data, int offset, int length) throws IOException {
+                if (blobWriter == null) {
+                    if (checksumField != null) {
+                        if (checksumField.size() + length > MAX_FIELD_SIZE) {
+                            throw new ChecksumMismatchException("sha256字段过长");
+                        }
+                        checksumField.write(data, offset, length);
+                    }
+                    return;
+                }
+                if (!UsageManager.reserve(username, length)) {
+                    throw new QuotaExceededException();
+                }
+                written += length;
+                blobWriter.write(data, offset, length);
+            }
+            
+            @Override
+            public void endPart() throws IOException {
+                if (blobWriter == null) {
+                    if (checksumField != null) {
+                        pendingChecksums = new Checksums();
+                        pendingChecksums.parseSha256Hex(checksumField.toString("ISO-8859-1"));
+                        checksumField = null;
+                    }
+                    return;
+                }
+                Path savedPath = blobWriter.commit(userUploadDir, currentFilename);
+                UsageManager.release(username, written);
+                UsageManager.fileAdded(username, written);
+                written = 0;
+                savedFiles.add(savedPath);
+                savedHashes.add(blobWriter.hash());
+                blobWriter = null;
+                FileIndex.fileAdded(username, savedPath);
+                currentFilename = null;
+            }
+            
+            // 出错时丢弃写了一半的临时文件，并撤销本次请求中已保存的文件
+            void abort() {
+                if (blobWriter != null) {
+                    blobWriter.abort();
+                    blobWriter = null;
+                    currentFilename = null;
+                }
+                UsageManager.release(username, written);
+                written = 0;
+                for (Path saved : savedFiles) {
+                    try {
+                        UsageManager.fileRemoved(username, BlobStore.deleteUserFile(saved));
+                        FileIndex.fileRemoved(username, saved.getFileName().toString());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                savedFiles.clear();
+                savedHashes.clear();
+            }
+        }
+    }
+    
+    // 流式multipart解析器：用Horspool跳跃查找边界，part内容按整段回调，不做逐字节处理
+    static class MultipartParser {
+        interface PartListener {
+            // 新part开始，headers为原始头部文本
+            void startPart(String headers) throws IOException;
+            // part内容片段，data只在回调期间有效
+            void partData(byte[] data, int offset, int length) throws IOException;
+            // part结束（已遇到下一个边界）
+            void endPart() throws IOException;
+        }
+        
+        private static final int MAX_HEADER_SIZE = 16 * 1024;
+        // 边界行末尾允许的空白上限
+        private static final int MAX_BOUNDARY_PADDING = 64;
+        private static final int PREAMBLE = 0, AFTER_BOUNDARY = 1, HEADERS = 2, BODY = 3, DONE = 4;
+        
+        private final byte[] delimiter; // "\r\n--" + boundary
+        private final int[] skip = new int[256];
+        private final int bufferSize;
+        
+        MultipartParser(String boundary, int bufferSize) {
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            this.bufferSize = Math.max(bufferSize, MAX_HEADER_SIZE + delimiter.length * 2);
+            
+            // Horspool坏字符表：按窗口最后一个字节决定跳跃距离
+            int m = delimiter.length;
+            Arrays.fill(skip, m);
+            for (int i = 0; i < m - 1; i++) {
+                skip[delimiter[i] & 0xff] = m - 1 - i;
+            }
+        }
+        
+        void parse(InputStream in, PartListener listener) throws IOException {
+            byte[] buf = new byte[bufferSize];
+            // 在流前补一个CRLF，使第一个边界与后续边界格式一致
+            buf[0] = '\r';
+            buf[1] = '\n';
+            int pos = 0;
+            int limit = 2;
+            int state = PREAMBLE;
+            boolean eof = false;
+            int m = delimiter.length;
+            
+            while (state != DONE) {
+                if (state == PREAMBLE || state == BODY) {
+                    int idx = indexOfDelimiter(buf, pos, limit);
+                    if (idx >= 0) {
+                        if (state == BODY) {
+                            if (idx > pos) {
+                                listener.partData(buf, pos, idx - pos);
+                            }
+                            listener.endPart();
+                        }
+                        pos = idx + m;
+                        state = AFTER_BOUNDARY;
+                        continue;
+                    }
+                    // 未找到边界：末尾m-1字节可能是边界前缀需要保留，其余整段输出
+                    int safe = Math.max(pos, limit - m + 1);
+                    if (state == BODY && safe > pos) {
+                        listener.partData(buf, pos, safe - pos);
+                    }
+                    pos = safe;
+                } else if (state == AFTER_BOUNDARY) {
+                    if (limit - pos >= 2 && buf[pos] == '-' && buf[pos + 1] == '-') {
+                        state = DONE; // 结束边界
+                        continue;
+                    }
+                    // 边界行末尾允许有空白
+                    int i = pos;
+                    while (i < limit && (buf[i] == ' ' || buf[i] == '\t')) {
+                        i++;
+                    }
+                    if (i - pos > MAX_BOUNDARY_PADDING) {
+                        throw new IOException("multipart 边界行空白过多");
+                    }
+                    if (limit - i >= 2) {
+                        if (buf[i] != '\r' || buf[i + 1] != '\n') {
+                            throw new IOException("multipart 边界格式错误");
+                        }
+                        pos = i + 2;
+                        state = HEADERS;
+                        continue;
+                    }
+                } else { // HEADERS
+                    if (limit - pos >= 2 && buf[pos] == '\r' && buf[pos + 1] == '\n') {
+                        listener.startPart(""); // 没有头部的part
+                        pos += 2;
+                        state = BODY;
+                        continue;
+                    }
+                    int idx = indexOfHeaderEnd(buf, pos, limit);
+                    if (idx >= 0) {
+                        listener.startPart(new String(buf, pos, idx - pos, StandardCharsets.UTF_8));
+                        pos = idx + 4;
+                        state = BODY;
+                        continue;
+                    }
+                    if (limit - pos > MAX_HEADER_SIZE) {
+                        throw new IOException("multipart 头部过大");
+                    }
+                }
+                
+                // 需要更多数据：把未处理部分移到缓冲区开头后继续读取
+                if (eof) {
+                    throw new IOException("multipart 数据不完整");
+                }
+                if (pos > 0) {
+                    System.arraycopy(buf, pos, buf, 0, limit - pos);
+                    limit -= pos;
+                    pos = 0;
+                }
+                if (limit == buf.length) {
+                    // 缓冲区已满却无法前进，继续读只会读到0字节空转
+                    throw new IOException("multipart 数据无法解析");
+                }
+                int n = in.read(buf, limit, buf.length - limit);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    limit += n;
+                }
+            }
+        }
+        
+        // 在[from, to)中查找边界，返回起始下标，未找到返回-1
+        int indexOfDelimiter(byte[] buf, int from, int to) {
+            int m = delimiter.length;
+            int last = m - 1;
+            byte lastByte = delimiter[last];
+            int end = to - m;
+            int i = from;
+            while (i <= end) {
+                byte b = buf[i + last];
+                if (b == lastByte && Arrays.equals(buf, i, i + last, delimiter, 0, last)) {
+                    return i;
+                }
+                i += skip[b & 0xff];
+            }
+            return -1;
+        }
+        
+        // 查找头部结束位置（CRLFCRLF），未找到返回-1
+        private static int indexOfHeaderEnd(byte[] buf, int from, int to) {
+            for (int i = from; i + 3 < to; i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+
+    // 异步磁盘写入：网络线程把数据拷入写入流自己的缓冲区后立即返回继续读socket，
+    // 按所在卷（FileStore）划分的写盘线程负责按位置写入文件，慢盘不再直接阻塞TCP读取
+    // 每个写入流最多占用 buffers 个缓冲区，全部在途时网络线程阻塞等待，反压最终传导到TCP接收窗口
+    // 直接缓冲区由每卷一个有界的池借出（poolBuffers 个），写入流之间复用；池已借空时网络线程等待归还，同样形成反压
+    // -Dmirad.writer.mode=async|sync（sync为在调用线程直接写，与原先行为一致）
+    // -Dmirad.writer.durability=none|close|periodic：不强制刷盘 / 关闭前fsync / 写入期间每隔forceInterval毫秒force一次，关闭前再fsync一次
+    static class DiskWriter {
+        enum Durability { NONE, CLOSE, PERIODIC }
+        
+        private static final boolean ASYNC = !"sync".equalsIgnoreCase(System.getProperty("mirad.writer.mode", "async"));
+        private static final Durability DURABILITY =
+            Durability.valueOf(System.getProperty("mirad.writer.durability", "none").toUpperCase(Locale.ROOT));
+        private static final long FORCE_INTERVAL = Long.getLong("mirad.writer.forceInterval", 1000);
+        private static final int THREADS_PER_VOLUME = Integer.getInteger("mirad.writer.threads", 2);
+        private static final int STREAM_BUFFERS = Math.max(2, Integer.getInteger("mirad.writer.buffers", 4));
+        private static final int STREAM_BUFFER_SIZE = Integer.getInteger("mirad.writer.bufferSize", 256 * 1024);
+        private static final int VOLUME_BUFFERS = Integer.getInteger("mirad.writer.poolBuffers", 64);
+        private static final Map<Object, Volume> volumes = new ConcurrentHashMap<>();
+        
+        // 为已打开的文件通道创建写入流，从position开始顺序写入
+        static Stream open(FileChannel channel, Path path, long position) throws IOException {
+            Volume volume = null;
+            if (ASYNC) {
+                FileStore store = Files.getFileStore(path);
+                volume = volumes.computeIfAbsent(store, Volume::new);
+            }
+            return new Stream(channel, volume, position);
+        }
+        
+        static String describe() {
+            return (ASYNC ? "async，每卷 " + THREADS_PER_VOLUME + " 个写盘线程" : "sync")
+                + "，持久化: " + DURABILITY.name().toLowerCase(Locale.ROOT);
+        }
+        
+        // 所有卷上排队待写的字节数
+        static long queuedBytes() {
+            long total = 0;
+            for (Volume volume : volumes.values()) {
+                total += volume.queuedBytes.get();
+            }
+            return total;
+        }
+        
+        private static final class Task {
+            final Stream stream;
+            final ByteBuffer buffer;
+            final long position;
+            
+            Task(Stream stream, ByteBuffer buffer, long position) {
+                this.stream = stream;
+                this.buffer = buffer;
+                this.position = position;
+            }
+        }
+        
+        private static final class Volume {
+            final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+            final AtomicLong queuedBytes = new AtomicLong();
+            private final BlockingQueue<ByteBuffer> pool = new LinkedBlockingQueue<>();
+            private final AtomicInteger allocated = new AtomicInteger();
+            
+            Volume(Object store) {
+                for (int i = 0; i < THREADS_PER_VOLUME; i++) {
+                    Thread t = new Thread(this::run, "disk-writer-" + store + "-" + i);
+                    t.setDaemon(true);
+                    t.start();
+                }
+            }
+            
+            private void run() {
+                while (true) {
+                    Task task;
+                    try {
+                        task = queue.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int length = task.buffer.remaining();
+                    try {
+                        task.stream.writeAt(task.buffer, task.position);
+                    } catch (IOException e) {
+                        task.stream.fail(e);
+                    } catch (RuntimeException e) {
+                        task.stream.fail(new IOException(e));
+                    } finally {
+                        queuedBytes.addAndGet(-length);
+                        task.stream.release(task.buffer);
+                    }
+                }
+            }
+            
+            // 从池中借一个缓冲区，池已借空且达到上限时等待其他写入流归还
+            ByteBuffer borrow() throws InterruptedException {
+                ByteBuffer buffer = pool.poll();
+                if (buffer != null) {
+                    return buffer;
+                }
+                int n;
+                while ((n = allocated.get()) < VOLUME_BUFFERS) {
+                    if (allocated.compareAndSet(n, n + 1)) {
+                        return ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+                    }
+                }
+                return pool.take();
+            }
+            
+            void giveBack(ByteBuffer buffer) {
+                buffer.clear();
+                pool.add(buffer);
+            }
+        }
+        
+        static final class Stream {
+            private final FileChannel channel;
+            private final Volume volume;
+            private int borrowed; // 从卷的池中借出、尚未归还的缓冲区（含current）
+            private ByteBuffer current;
+            private long position;
+            private volatile IOException error;
+            private volatile long lastForce = System.currentTimeMillis();
+            
+            Stream(FileChannel channel, Volume volume, long position) {
+                this.channel = channel;
+                this.volume = volume;
+                this.position = position;
+            }
+            
+            void write(byte[] data, int offset, int length) throws IOException {
+                checkError();
+                if (volume == null) {
+                    position = writeFully(channel, data, offset, length, position);
+                    maybeForce();
+                    return;
+                }
+                while (length > 0) {
+                    if (current == null) {
+                        current = acquire();
+                    }
+                    int n = Math.min(length, current.remaining());
+                    current.put(data, offset, n);
+                    offset += n;
+                    length -= n;
+                    if (!current.hasRemaining()) {
+                        submit();
+                    }
+                }
+            }
+            
+            // 等待已提交的数据全部写入文件
+            void flush() throws IOException {
+                if (volume != null) {
+                    if (current != null && current.position() > 0) {
+                        submit();
+                    }
+                    discardCurrent();
+                    awaitIdle();
+                }
+                checkError();
+            }
+            
+            // 按持久化策略在关闭前刷盘；在flush以及截断等改变文件长度的操作之后调用，文件通道由调用方关闭
+            void sync() throws IOException {
+                if (DURABILITY != Durability.NONE) {
+                    // periodic模式下最后一个间隔内写入的数据也要落盘
+                    channel.force(true);
+                }
+            }
+            
+            // 放弃写入：只等待在途的写入结束，调用方随后可安全关闭通道
+            void abort() {
+                discardCurrent();
+                if (volume != null) {
+                    try {
+                        awaitIdle();
+                    } catch (InterruptedIOException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            
+            // 先占本流的名额再向卷借缓冲区；向卷等待时不能持有本流的锁，否则写盘线程无法归还
+            private ByteBuffer acquire() throws IOException {
+                try {
+                    synchronized (this) {
+                        while (borrowed >= STREAM_BUFFERS) {
+                            // 本流的缓冲区都在排队写盘：阻塞网络线程形成反压
+                            wait();
+                        }
+                        borrowed++;
+                    }
+                    try {
+                        return volume.borrow();
+                    } catch (InterruptedException e) {
+                        synchronized (this) {
+                            borrowed--;
+                            notifyAll();
+                        }
+                        throw e;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("等待磁盘写入时被中断");
+                }
+            }
+            
+            private void submit() {
+                ByteBuffer buffer = current;
+                current = null;
+                buffer.flip();
+                int length = buffer.remaining();
+                volume.queuedBytes.addAndGet(length);
+                volume.queue.add(new Task(this, buffer, position));
+                position += length;
+            }
+            
+            // 未提交的缓冲区直接归还，否则awaitIdle会一直等它
+            private void discardCurrent() {
+                if (current != null) {
+                    release(current);
+                    current = null;
+                }
+            }
+            
+            private void awaitIdle() throws InterruptedIOException {
+                synchronized (this) {
+                    while (borrowed > 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("等待磁盘写入时被中断");
+                        }
+                    }
+                }
+            }
+            
+            // 写盘线程调用
+            private void writeAt(ByteBuffer buffer, long at) throws IOException {
+                if (error != null) {
+                    return; // 已经失败，后续数据直接丢弃
+                }
+                while (buffer.hasRemaining()) {
+                    at += channel.write(buffer, at);
+                }
+                maybeForce();
+            }
+            
+            private void maybeForce() throws IOException {
+                if (DURABILITY == Durability.PERIODIC) {
+                    long now = System.currentTimeMillis();
+                    if (now - lastForce >= FORCE_INTERVAL) {
+                        lastForce = now;
+                        channel.force(false);
+                    }
+                }
+            }
+            
+            private void fail(IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            
+            private void release(ByteBuffer buffer) {
+                volume.giveBack(buffer);
+                synchronized (this) {
+                    borrowed--;
+                    notifyAll();
+                }
+            }
+            
+            private void checkError() throws IOException {
+                IOException e = error;
+                if (e != null) {
+                    throw new IOException("写入文件失败: " + e.getMessage(), e);
+                }
+            }
+            
+            private static long writeFully(FileChannel channel, byte[] data, int offset, int length, long position)
+                    throws IOException {
+                ByteBuffer slice = ByteBuffer.wrap(data, offset, length);
+                while (slice.hasRemaining()) {
+                    position += channel.write(slice, position);
+                }
+                return position;
+            }
+        }
+    }
+    
+    // 内容寻址存储：每份不同的内容只在blobs/<前2位>/<前4位>/<sha256>存一份，
+    // 用户目录中的文件是指向它的硬链接，文件系统的链接计数即引用计数；
+    // 用户文件与blob共用同一inode，下载直接读到的就是blob内容
+    static class BlobStore {
+        private static final Path ROOT = Paths.get(BLOB_DIR);
+        private static final Path TMP = ROOT.resolve("tmp");
+        // inode（fileKey）到内容哈希的映射，用于删除时找到对应的blob
+        private static final Map<Object, String> hashByKey = new ConcurrentHashMap<>();
+        // 按哈希分段加锁，串行化同一内容的链接与回收
+        private static final Object[] LOCKS = new Object[64];
+        static {
+            for (int i = 0; i < LOCKS.length; i++) {
+                LOCKS[i] = new Object();
+            }
+        }
+        private static volatile boolean linksSupported = true;
+        
+        // 启动时清理临时文件，建立inode映射，回收没有任何用户引用的blob
+        static void init() throws IOException {
+            Files.createDirectories(TMP);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(TMP)) {
+                for (Path tmp : stream) {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            int[] counts = new int[2];
+            Files.walkFileTree(ROOT, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return dir.equals(TMP) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (linkCount(file) <= 1) {
+                        Files.deleteIfExists(file);
+                        counts[1]++;
+                    } else if (attrs.fileKey() != null) {
+                        hashByKey.put(attrs.fileKey(), file.getFileName().toString());
+                        counts[0]++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            System.out.println("内容存储: " + counts[0] + " 个blob，回收 " + counts[1] + " 个无引用blob");
+        }
+        
+        static BlobWriter newWriter() throws IOException {
+            return new BlobWriter(TMP.resolve("upload-" + UUID.randomUUID() + ".tmp"));
+        }
+        
+        // 把已经写好的文件（如续传暂存文件）存入；写入时已算出哈希的直接使用，否则回读计算
+        static Path ingestFile(Path source, String knownHash, String userUploadDir, String filename) throws IOException {
+            if (knownHash != null) {
+                return store(source, knownHash, userUploadDir, filename);
+            }
+            MessageDigest digest = UserManager.SHA256.get();
+            digest.reset();
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            return store(source, UserManager.toHex(digest.digest()), userUploadDir, filename);
+        }
+        
+        // 返回文件内容的sha256（十六进制），不在存储中的文件返回null
+        static String hashOf(BasicFileAttributes attrs) {
+            Object key = attrs.fileKey();
+            return key == null ? null : hashByKey.get(key);
+        }
+        
+        // 给已存在的blob在用户目录创建一个新的引用，blob不存在时返回null
+        static Path linkExisting(String hash, String userUploadDir, String filename) throws IOException {
+            synchronized (lockFor(hash)) {
+                Path blob = blobPath(hash);
+                if (!Files.exists(blob)) {
+                    return null;
+                }
+                return linkInto(blob, userUploadDir, filename);
+            }
+        }
+        
+        // 删除用户文件，blob没有其他引用时一并回收
+        // 返回被删除文件的大小，供用量统计扣减
+        static long deleteUserFile(Path file) throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            String hash = hashOf(attrs);
+            Files.delete(file);
+            if (hash == null) {
+                return attrs.size();
+            }
+            synchronized (lockFor(hash)) {
+                Path blob = blobPath(hash);
+                if (Files.exists(blob) && linkCount(blob) <= 1) {
+                    Files.delete(blob);
+                    hashByKey.remove(attrs.fileKey(), hash);
+                }
+            }
+            return attrs.size();
+        }
+        
+        // 临时文件内容的哈希已知：已有相同blob则丢弃临时文件，否则临时文件成为新blob
+        private static Path store(Path tmp, String hash, String userUploadDir, String filename) throws IOException {
+            if (!linksSupported) {
+                return moveInto(tmp, userUploadDir, filename);
+            }
+            synchronized (lockFor(hash)) {
+                Path blob = blobPath(hash);
+                if (!Files.exists(blob)) {
+                    Files.createDirectories(blob.getParent());
+                    Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+                    Object key = Files.readAttributes(blob, BasicFileAttributes.class).fileKey();
+                    if (key != null) {
+                        hashByKey.put(key, hash);
+                    }
+                }
+                try {
+                    return linkInto(blob, userUploadDir, filename);
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    // 无法创建硬链接（文件系统不支持、跨设备、链接数达到上限）：这份文件单独存放
+                    System.err.println("无法创建硬链接，按独立文件保存: " + e.getMessage());
+                    if (e instanceof UnsupportedOperationException) {
+                        linksSupported = false;
+                    }
+                    if (Files.exists(tmp)) {
+                        return moveInto(tmp, userUploadDir, filename);
+                    }
+                    Path target = uniqueUploadPath(userUploadDir, filename);
+                    Files.copy(blob, target);
+                    return target;
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+        }
+        
+        private static Path linkInto(Path blob, String userUploadDir, String filename) throws IOException {
+            while (true) {
+                Path target = uniqueUploadPath(userUploadDir, filename);
+                try {
+                    return Files.createLink(target, blob);
+                } catch (FileAlreadyExistsException e) {
+                    // 并发上传占用了同名文件，重新选择名字
+                }
+            }
+        }
+        
+        private static Path moveInto(Path tmp, String userUploadDir, String filename) throws IOException {
+            while (true) {
+                Path target = uniqueUploadPath(userUploadDir, filename);
+                try {
+                    return Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    // 并发上传占用了同名文件，重新选择名字
+                }
+            }
+        }
+        
+        static Path blobPath(String hash) {
+            return ROOT.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+        }
+        
+        private static Object lockFor(String hash) {
+            return LOCKS[(hash.hashCode() & 0x7fffffff) % LOCKS.length];
+        }
+        
+        private static int linkCount(Path file) throws IOException {
+            try {
+                return (Integer) Files.getAttribute(file, "unix:nlink");
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                return Integer.MAX_VALUE; // 无法获知引用数时不回收
+            }
+        }
+        
+        // 上传写入器：边写临时文件边计算sha256，提交时按哈希去重
+        static class BlobWriter {
+            private final Path tmp;
+            private final FileChannel channel;
+            private final DiskWriter.Stream out;
+            private final MessageDigest digest;
+            private Checksums.Verifier verifier;
+            private String hash;
+            private long written;
+            private long preallocated;
+            
+            BlobWriter(Path tmp) throws IOException {
+                this.tmp = tmp;
+                this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                this.out = DiskWriter.open(channel, tmp, 0);
+                try {
+                    this.digest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            
+            // 提交时按客户端声明的校验和验证内容
+            void expect(Checksums expected) {
+                verifier = expected.isEmpty() ? null : new Checksums.Verifier(expected, false);
+            }
+            
+            // 已知最终大小时先把文件扩展到该长度（同RandomAccessFile.setLength），写入时不再反复扩展
+            void preallocate(long size) throws IOException {
+                if (size > 0) {
+                    channel.write(ByteBuffer.allocate(1), size - 1);
+                    preallocated = size;
+                }
+            }
+            
+            void write(byte[] data, int offset, int length) throws IOException {
+                digest.update(data, offset, length);
+                if (verifier != null) {
+                    verifier.update(data, offset, length);
+                }
+                // 交给写盘线程，调用线程只做哈希和一次内存拷贝
+                out.write(data, offset, length);
+                written += length;
+            }
+            
+            // 完成写入，返回用户目录中的最终路径
+            // 校验失败时删除临时文件并抛出ChecksumMismatchException
+            Path commit(String userUploadDir, String filename) throws IOException {
+                out.flush();
+                if (preallocated > written) {
+                    channel.truncate(written);
+                }
+                // 截断之后再刷盘，文件长度也随之落盘
+                out.sync();
+                channel.close();
+                byte[] sha256 = digest.digest();
+                if (verifier != null) {
+                    try {
+                        verifier.verify(sha256);
+                    } catch (ChecksumMismatchException e) {
+                        Files.deleteIfExists(tmp);
+                        throw e;
+                    }
+                }
+                hash = UserManager.toHex(sha256);
+                return store(tmp, hash, userUploadDir, filename);
+            }
+            
+            // 提交后可用
+            String hash() {
+                return hash;
+            }
+            
+            void abort() {
+                out.abort();
+                try {
+                    channel.close();
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+    // 客户端声明的校验和：请求头Digest（RFC 3230，支持sha-256、md5、crc32c）和Content-MD5，
+    // multipart中还可以放在文件part的头部，或在文件之前提供表单字段sha256（十六进制）
+    // 校验值在写入的同时计算，不再为校验回读文件
+    static class Checksums {
+        byte[] sha256;
+        byte[] md5;
+        byte[] crc32c;
+        
+        static Checksums fromHeaders(Headers headers) throws ChecksumMismatchException {
+            Checksums checksums = new Checksums();
+            checksums.parseDigest(headers.getFirst("Digest"));
+            checksums.parseContentMd5(headers.getFirst("Content-MD5"));
+            return checksums;
+        }
+        
+        // 解析multipart part的原始头部
+        static Checksums fromPartHeaders(String headers) throws ChecksumMismatchException {
+            Checksums checksums = new Checksums();
+            for (String line : headers.split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if ("Digest".equalsIgnoreCase(name)) {
+                    checksums.parseDigest(value);
+                } else if ("Content-MD5".equalsIgnoreCase(name)) {
+                    checksums.parseContentMd5(value);
+                }
+            }
+            return checksums;
+        }
+        
+        // Digest: sha-256=<base64>, md5=<base64>, crc32c=<base64或8位十六进制>；不认识的算法忽略
+        void parseDigest(String value) throws ChecksumMismatchException {
+            if (value == null) {
+                return;
+            }
+            for (String item : value.split(",")) {
+                int eq = item.indexOf('=');
+                if (eq <= 0) {
+                    continue;
+                }
+                String algorithm = item.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+                String encoded = item.substring(eq + 1).trim();
+                if ("sha-256".equals(algorithm)) {
+                    sha256 = decode(encoded, 32, algorithm);
+                } else if ("md5".equals(algorithm)) {
+                    md5 = decode(encoded, 16, algorithm);
+                } else if ("crc32c".equals(algorithm)) {
+                    crc32c = encoded.length() == 8 ? UserManager.fromHex(encoded.toLowerCase(Locale.ROOT)) : null;
+                    if (crc32c == null) {
+                        crc32c = decode(encoded, 4, algorithm);
+                    }
+                }
+            }
+        }
+        
+        void parseContentMd5(String value) throws ChecksumMismatchException {
+            if (value != null) {
+                md5 = decode(value.trim(), 16, "md5");
+            }
+        }
+        
+        // 表单字段sha256，十六进制
+        void parseSha256Hex(String value) throws ChecksumMismatchException {
+            byte[] bytes = UserManager.fromHex(value.trim().toLowerCase(Locale.ROOT));
+            if (bytes == null || bytes.length != 32) {
+                throw new ChecksumMismatchException("sha256字段格式错误");
+            }
+            sha256 = bytes;
+        }
+        
+        // 以后出现的值覆盖已有的值
+        void merge(Checksums other) {
+            if (other.sha256 != null) {
+                sha256 = other.sha256;
+            }
+            if (other.md5 != null) {
+                md5 = other.md5;
+            }
+            if (other.crc32c != null) {
+                crc32c = other.crc32c;
+            }
+        }
+        
+        boolean isEmpty() {
+            return sha256 == null && md5 == null && crc32c == null;
+        }
+        
+        private static byte[] decode(String encoded, int length, String algorithm) throws ChecksumMismatchException {
+            try {
+                byte[] bytes = Base64.getDecoder().decode(encoded);
+                if (bytes.length == length) {
+                    return bytes;
+                }
+            } catch (IllegalArgumentException e) {
+                // 下面统一报错
+            }
+            throw new ChecksumMismatchException(algorithm + "校验值格式错误");
+        }
+        
+        // 只计算客户端声明了的算法；sha256可以由调用方提供（BlobWriter本来就在计算）
+        static class Verifier {
+            private final Checksums expected;
+            private final MessageDigest sha256;
+            private final MessageDigest md5;
+            private final CRC32C crc32c;
+            
+            Verifier(Checksums expected, boolean computeSha256) {
+                this.expected = expected;
+                try {
+                    this.sha256 = computeSha256 && expected.sha256 != null ? MessageDigest.getInstance("SHA-256") : null;
+                    this.md5 = expected.md5 != null ? MessageDigest.getInstance("MD5") : null;
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+                this.crc32c = expected.crc32c != null ? new CRC32C() : null;
+            }
+            
+            void update(byte[] data, int offset, int length) {
+                if (sha256 != null) {
+                    sha256.update(data, offset, length);
+                }
+                if (md5 != null) {
+                    md5.update(data, offset, length);
+                }
+                if (crc32c != null) {
+                    crc32c.update(data, offset, length);
+                }
+            }
+            
+            // 不匹配时抛出异常；computedSha256为null时使用自己计算的值
+            void verify(byte[] computedSha256) throws ChecksumMismatchException {
+                if (expected.sha256 != null) {
+                    byte[] actual = computedSha256 != null ? computedSha256 : sha256.digest();
+                    if (!MessageDigest.isEqual(expected.sha256, actual)) {
+                        throw new ChecksumMismatchException("sha-256校验失败");
+                    }
+                }
+                if (md5 != null && !MessageDigest.isEqual(expected.md5, md5.digest())) {
+                    throw new ChecksumMismatchException("md5校验失败");
+                }
+                if (crc32c != null) {
+                    long value = crc32c.getValue();
+                    byte[] actual = {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+                    if (!MessageDigest.isEqual(expected.crc32c, actual)) {
+                        throw new ChecksumMismatchException("crc32c校验失败");
+                    }
+                }
+            }
+            
+            // 包装请求体，读取的同时更新校验值
+            InputStream wrap(InputStream in) {
+                return new FilterInputStream(in) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b != -1) {
+                            update(new byte[] {(byte) b}, 0, 1);
+                        }
+                        return b;
+                    }
+                    
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if (n > 0) {
+                            update(b, off, n);
+                        }
+                        return n;
+                    }
+                };
+            }
+        }
+    }
+    
+    // 校验和格式错误或与内容不符，返回400
+    static class ChecksumMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        ChecksumMismatchException(String message) {
+            super(message);
+        }
+    }
+    
+    // 原始请求体上传：PUT /files/<文件名>，请求体即文件内容，不做multipart解析
+    // 适合脚本和命令行工具（如 curl -T file http://host/files/）；文件名清理、重名处理、登录校验与 /upload 相同，
+    // 支持Digest/Content-MD5校验和配额；有Content-Length时按其预分配文件并预占配额 -> 201 + {name, sha256, size}
+    static class RawUploadHandler implements HttpHandler {
+        private static final String PREFIX = "/files/";
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // 检查登录状态
+            String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
+            String username = SessionManager.validateSession(sessionId);
+            if (username == null) {
+                sendJsonError(exchange, 401, "请先登录");
+                return;
+            }
+            
+            if (!"PUT".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "PUT");
+                sendErrorResponse(exchange, 405, "方法不允许");
+                return;
+            }
+            
+            String path = exchange.getRequestURI().getPath();
+            String filename = path.startsWith(PREFIX) ? UploadHandler.sanitizeFilename(path.substring(PREFIX.length())) : "";
+            if (filename.isEmpty() || filename.equals(".") || filename.equals("..")) {
+                sendJsonError(exchange, 400, "缺少文件名");
+                return;
+            }
+            
+            long contentLength = parseLongHeader(exchange, "Content-Length");
+            if (contentLength > 0 && !UsageManager.reserve(username, contentLength)) {
+                sendJsonError(exchange, 413, "超出存储配额");
+                return;
+            }
+            long reserved = Math.max(contentLength, 0);
+            
+            BlobStore.BlobWriter writer = null;
+            long written = 0;
+            try {
+                writer = BlobStore.newWriter();
+                writer.expect(Checksums.fromHeaders(exchange.getRequestHeaders()));
+                writer.preallocate(contentLength);
+                
+                InputStream body = RateLimiter.wrap(exchange.getRequestBody(), RateLimiter.forTransfer(exchange, username));
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = body.read(buffer)) != -1) {
+                    // 没有Content-Length（chunked）时边写边预占
+                    if (written + bytesRead > reserved) {
+                        long more = written + bytesRead - reserved;
+                        if (!UsageManager.reserve(username, more)) {
+                            throw new QuotaExceededException();
+                        }
+                        reserved += more;
+                    }
+                    writer.write(buffer, 0, bytesRead);
+                    written += bytesRead;
+                }
+                
+                String userUploadDir = UserManager.getUserUploadDir(username);
+                Path saved = writer.commit(userUploadDir, filename);
+                String sha256 = writer.hash();
+                writer = null;
+                UsageManager.release(username, reserved);
+                reserved = 0;
+                UsageManager.fileAdded(username, written);
+                FileIndex.fileAdded(username, saved);
+                
+                String name = saved.getFileName().toString();
+                StringBuilder json = new StringBuilder("{\"success\": true, \"name\": \"");
+                appendJsonEscaped(json, name);
+                json.append("\", \"sha256\": \"").append(sha256).append("\", \"size\": ").append(written).append('}');
+                exchange.getResponseHeaders().set("Location", "/download?file=" + URLEncoder.encode(name, "UTF-8").replace("+", "%20"));
+                sendJsonResponse(exchange, 201, json.toString());
+            } catch (ChecksumMismatchException e) {
+                sendJsonError(exchange, 400, "校验和不匹配: " + e.getMessage());
+            } catch (QuotaExceededException e) {
+                sendJsonError(exchange, 413, e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendJsonError(exchange, 500, "上传失败: " + e.getMessage());
+            } finally {
+                if (writer != null) {
+                    writer.abort();
+                }
+                UsageManager.release(username, reserved);
+            }
+        }
+    }
+    
+    // 秒传处理器：客户端先提交文件大小和SHA-256，服务器已有相同内容时直接在用户目录建立引用，不传输任何字节
+    // POST /instant-upload?file=名称&size=字节数&sha256=十六进制哈希 -> {"instant": true/false}
+    // 匹配范围由 -Dmirad.instant.scope 决定：user（默认，仅本用户已有的文件）或 global（全部用户的内容）
+    // global范围下内容只属于其他用户时先要求持有证明：返回challenge（nonce、offset、length），
+    // 客户端带上 nonce=...&proof=sha256(nonce + 文件[offset, offset+length)) 重新提交，验证通过才建立引用
+    static class InstantUploadHandler implements HttpHandler {
+        private static final boolean GLOBAL_SCOPE = "global".equalsIgnoreCase(System.getProperty("mirad.instant.scope"));
+        private static final Pattern SHA256_HEX = Pattern.compile("^[0-9a-f]{64}$");
+        private static final int PROOF_LENGTH = 64 * 1024;
+        private static final long CHALLENGE_TIMEOUT = 5 * 60 * 1000;
+        private static final int MAX_CHALLENGES = 10000;
+        private static final SecureRandom RANDOM = new SecureRandom();
+        // 未使用的挑战，按nonce索引，一次有效
+        private static final Map<String, Challenge> challenges = new ConcurrentHashMap<>();
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // 检查登录状态
+            String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
+            String username = SessionManager.validateSession(sessionId);
+            if (username == null) {
+                sendJsonError(exchange, 401, "请先登录");
+                return;
+            }
+            
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendErrorResponse(exchange, 405, "方法不允许");
+                return;
+            }
+            
+            try {
+                String query = exchange.getRequestURI().getRawQuery();
+                Map<String, String> params = parseFormData(query == null ? "" : query);
+                String filename = params.get("file");
+                String hash = params.getOrDefault("sha256", "").toLowerCase(Locale.ROOT);
+                long size;
+                try {
+                    size = Long.parseLong(params.getOrDefault("size", "-1"));
+                } catch (NumberFormatException e) {
+                    size = -1;
+                }
+                if (filename == null || filename.isEmpty() || size < 0 || !SHA256_HEX.matcher(hash).matches()) {
+                    sendJsonError(exchange, 400, "缺少file、size或sha256参数");
+                    return;
+                }
+                filename = UploadHandler.sanitizeFilename(filename);
+                
+                if (!UsageManager.fits(username, size)) {
+                    sendJsonError(exchange, 413, "超出存储配额");
+                    return;
+                }
+                
+                Path saved = null;
+                if (hasOwnContent(username, hash, size)) {
+                    saved = BlobStore.linkExisting(hash, UserManager.getUserUploadDir(username), filename);
+                } else if (GLOBAL_SCOPE && hasBlob(hash, size)) {
+                    String nonce = params.get("nonce");
+                    if (nonce == null) {
+                        sendChallenge(exchange, username, hash, size);
+                        return;
+                    }
+                    if (!verifyProof(username, hash, size, nonce, params.getOrDefault("proof", ""))) {
+                        sendJsonError(exchange, 403, "持有证明无效");
+                        return;
+                    }
+                    saved = BlobStore.linkExisting(hash, UserManager.getUserUploadDir(username), filename);
+                }
+                if (saved == null) {
+                    sendJsonResponse(exchange, 200, "{\"success\": true, \"instant\": false}");
+                    return;
+                }
+                
+                UsageManager.fileAdded(username, size);
+                FileIndex.fileAdded(username, saved);
+                StringBuilder json = new StringBuilder("{\"success\": true, \"instant\": true, \"name\": \"");
+                appendJsonEscaped(json, saved.getFileName().toString());
+                json.append("\"}");
+                sendJsonResponse(exchange, 200, json.toString());
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendJsonError(exchange, 500, "秒传失败: " + e.getMessage());
+            }
+        }
+        
+        // 大小也必须一致，避免仅凭哈希猜测内容
+        private boolean hasOwnContent(String username, String hash, long size) throws IOException {
+            for (FileIndex.FileMeta file : FileIndex.forUser(username).files()) {
+                if (hash.equals(file.sha256) && file.size == size) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private boolean hasBlob(String hash, long size) throws IOException {
+            try {
+                return Files.size(BlobStore.blobPath(hash)) == size;
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+        }
+        
+        // 随机选取一段内容作为挑战，客户端必须持有完整文件才能算出证明
+        private void sendChallenge(HttpExchange exchange, String username, String hash, long size) throws IOException {
+            long now = System.currentTimeMillis();
+            if (challenges.size() >= MAX_CHALLENGES) {
+                challenges.values().removeIf(c -> c.expiry < now);
+                if (challenges.size() >= MAX_CHALLENGES) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    sendJsonError(exchange, 503, "服务器繁忙，请稍后重试");
+                    return;
+                }
+            }
+            byte[] random = new byte[16];
+            RANDOM.nextBytes(random);
+            String nonce = UserManager.toHex(random);
+            long length = Math.min(size, PROOF_LENGTH);
+            long offset = size > length ? (RANDOM.nextLong() & Long.MAX_VALUE) % (size - length + 1) : 0;
+            challenges.put(nonce, new Challenge(username, hash, offset, length, now + CHALLENGE_TIMEOUT));
+            sendJsonResponse(exchange, 200, String.format(
+                "{\"success\": true, \"instant\": false, \"challenge\": {\"nonce\": \"%s\", \"offset\": %d, \"length\": %d}}",
+                nonce, offset, length));
+        }
+        
+        private boolean verifyProof(String username, String hash, long size, String nonce, String proof) throws IOException {
+            Challenge challenge = challenges.remove(nonce);
+            if (challenge == null || challenge.expiry < System.currentTimeMillis()
+                    || !challenge.username.equals(username) || !challenge.hash.equals(hash)) {
+                return false;
+            }
+            MessageDigest digest = UserManager.SHA256.get();
+            digest.reset();
+            digest.update(nonce.getBytes(StandardCharsets.US_ASCII));
+            try (FileChannel channel = FileChannel.open(BlobStore.blobPath(hash), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) challenge.length);
+                while (buffer.hasRemaining() && channel.read(buffer, challenge.offset + buffer.position()) > 0) {
+                    // 读满挑战区间
+                }
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+                buffer.flip();
+                digest.update(buffer);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            byte[] expected = UserManager.toHex(digest.digest()).getBytes(StandardCharsets.US_ASCII);
+            return MessageDigest.isEqual(expected, proof.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII));
+        }
+        
+        private static final class Challenge {
+            final String username;
+            final String hash;
+            final long offset;
+            final long length;
+            final long expiry;
+            
+            Challenge(String username, String hash, long offset, long length, long expiry) {
+                this.username = username;
+                this.hash = hash;
+                this.offset = offset;
+                this.length = length;
+                this.expiry = expiry;
+            }
+        }
+    }
+    
+    // 断点续传上传管理（类似tus协议：创建上传 -> PATCH按偏移追加 -> HEAD查询已提交偏移）
+    // 指定chunkSize时为并行分块模式：文件预分配，各分块可在不同连接上并发PUT，位图记录已完成分块
+    // 超过 -Dmirad.resumable.expireHours（默认24）小时没有PATCH/PUT的任务视为放弃，由后台线程删除并释放配额
+    static class ResumableUploadManager {
+        private static final Map<String, ResumableUpload> uploads = new ConcurrentHashMap<>();
+        private static final long MAX_CHUNK_COUNT = 1 << 20;
+        private static final long EXPIRE_AFTER = Long.getLong("mirad.resumable.expireHours", 24) * 3600 * 1000;
+        private static final long SWEEP_INTERVAL = 10 * 60 * 1000;
+        
+        // 启动过期任务清理线程
+        static void startSweeper() {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "resumable-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+            sweeper.scheduleWithFixedDelay(ResumableUploadManager::removeExpired,
+                SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        
+        static void removeExpired() {
+            long deadline = System.currentTimeMillis() - EXPIRE_AFTER;
+            for (ResumableUpload upload : uploads.values()) {
+                if (upload.lastActivity > deadline || !upload.lock.tryLock()) {
+                    continue;
+                }
+                try {
+                    // 与DELETE相同：持锁且没有分块在写时才删除
+                    if (upload.lastActivity <= deadline && upload.inFlight.isEmpty()) {
+                        remove(upload);
+                        System.out.println("删除过期的续传任务: " + upload.id + "（" + upload.username + "/" + upload.filename + "）");
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    upload.lock.unlock();
+                }
+            }
+        }
+        
+        // 创建新的续传任务，先写入描述文件再创建暂存文件
+        // 声明的总长度在创建时整体预占配额，完成或终止时释放
+        static ResumableUpload create(String username, String filename, long length, long chunkSize) throws IOException {
+            if (!UsageManager.reserve(username, length)) {
+                throw new QuotaExceededException();
+            }
+            try {
+                return createReserved(username, filename, length, chunkSize);
+            } catch (IOException | RuntimeException e) {
+                UsageManager.release(username, length);
+                throw e;
+            }
+        }
+        
+        private static ResumableUpload createReserved(String username, String filename, long length, long chunkSize) throws IOException {
+            String id = UUID.randomUUID().toString().replace("-", "");
+            ResumableUpload upload = new ResumableUpload(id, username, filename, length, chunkSize);
+            
+            Properties info = new Properties();
+            info.setProperty("username", username);
+            info.setProperty("filename", filename);
+            info.setProperty("length", String.valueOf(length));
+            info.setProperty("chunkSize", String.valueOf(chunkSize));
+            try (OutputStream os = Files.newOutputStream(upload.infoPath())) {
+                info.store(os, null);
+            }
+            if (upload.isChunked()) {
+                // 预分配完整文件，并为每个分块准备一个完成标记字节
+                try (RandomAccessFile raf = new RandomAccessFile(upload.stagingPath().toFile(), "rw")) {
+                    raf.setLength(length);
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(upload.chunksPath().toFile(), "rw")) {
+                    raf.setLength(upload.chunkCount);
+                }
+            } else {
+                Files.createFile(upload.stagingPath());
+            }
+            uploads.put(id, upload);
+            return upload;
+        }
+        
+        static boolean isValidChunkSize(long length, long chunkSize) {
+            return chunkSize == 0 || (chunkSize > 0 && (length + chunkSize - 1) / chunkSize <= MAX_CHUNK_COUNT);
+        }
+        
+        static int pendingCount() {
+            return uploads.size();
+        }
+        
+        static ResumableUpload get(String id) {
+            return id == null ? null : uploads.get(id);
+        }
+        
+        // 终止上传并删除暂存数据
+        static void remove(ResumableUpload upload) throws IOException {
+            if (uploads.remove(upload.id) != null) {
+                UsageManager.release(upload.username, upload.length);
+            }
+            Files.deleteIfExists(upload.stagingPath());
+            Files.deleteIfExists(upload.chunksPath());
+            Files.deleteIfExists(upload.infoPath());
+        }
+        
+        // 全部字节到齐后存入内容寻址存储并链接到用户上传目录
+        static Path complete(ResumableUpload upload) throws IOException {
+            // 顺序模式在写入时已算出sha256；分块模式乱序到达，只能回读计算
+            MessageDigest digest = upload.digest;
+            Path target = BlobStore.ingestFile(upload.stagingPath(), digest == null ? null : UserManager.toHex(digest.digest()),
+                UserManager.getUserUploadDir(upload.username), upload.filename);
+            uploads.remove(upload.id);
+            UsageManager.release(upload.username, upload.length);
+            UsageManager.fileAdded(upload.username, upload.length);
+            Files.deleteIfExists(upload.chunksPath());
+            Files.deleteIfExists(upload.infoPath());
+            FileIndex.fileAdded(upload.username, target);
+            return target;
+        }
+        
+        // 分块写入完成后记录到位图和标记文件，最后一个完成的分块负责发布文件
+        static boolean markChunkDone(ResumableUpload upload, int chunk) throws IOException {
+            try (FileChannel channel = FileChannel.open(upload.chunksPath(), StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[] {1}), chunk);
+            }
+            if (!upload.setChunkDone(chunk)) {
+                return false;
+            }
+            if (upload.remaining.decrementAndGet() == 0) {
+                complete(upload);
+                return true;
+            }
+            return false;
+        }
+        
+        // 启动时恢复未完成的上传：顺序模式的已提交偏移即暂存文件长度，分块模式从标记文件恢复位图
+        static void loadPending() throws IOException {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(STAGING_DIR), "*.info")) {
+                for (Path infoPath : stream) {
+                    String name = infoPath.getFileName().toString();
+                    String id = name.substring(0, name.length() - ".info".length());
+                    try (InputStream is = Files.newInputStream(infoPath)) {
+                        Properties info = new Properties();
+                        info.load(is);
+                        ResumableUpload upload = new ResumableUpload(id, info.getProperty("username"),
+                            info.getProperty("filename"), Long.parseLong(info.getProperty("length")),
+                            Long.parseLong(info.getProperty("chunkSize", "0")));
+                        if (!Files.exists(upload.stagingPath())) {
+                            Files.deleteIfExists(infoPath);
+                            continue;
+                        }
+                        // 最后写入时间随进程丢失，以暂存文件的修改时间代替
+                        upload.lastActivity = Files.getLastModifiedTime(upload.stagingPath()).toMillis();
+                        if (upload.isChunked()) {
+                            byte[] marks = Files.readAllBytes(upload.chunksPath());
+                            for (int i = 0; i < Math.min(marks.length, upload.chunkCount); i++) {
+                                if (marks[i] != 0 && upload.setChunkDone(i)) {
+                                    upload.remaining.decrementAndGet();
+                                }
+                            }
+                        } else {
+                            upload.offset = Files.size(upload.stagingPath());
+                            if (upload.offset > 0) {
+                                upload.digest = null; // 已写入部分的哈希状态随进程丢失，完成时回读计算
+                            }
+                        }
+                        uploads.put(id, upload);
+                        UsageManager.reserveUnchecked(upload.username, upload.length);
+                    } catch (Exception e) {
+                        System.err.println("无法恢复续传任务 " + id + ": " + e.getMessage());
+                    }
+                }
+            }
+            if (!uploads.isEmpty()) {
+                System.out.println("恢复未完成的续传任务: " + uploads.size());
+            }
+        }
+        
+        static class ResumableUpload {
+            final String id;
+            final String username;
+            final String filename;
+            final long length;
+            volatile long offset;
+            // 同一任务同一时刻只允许一个PATCH写入
+            final ReentrantLock lock = new ReentrantLock();
+            // 顺序模式下随写入推进的sha256，与offset保持一致；为null时完成时回读计算
+            volatile MessageDigest digest;
+            
+            // 分块模式
+            final long chunkSize;
+            final int chunkCount;
+            private final AtomicLongArray doneBits;
+            final AtomicInteger remaining;
+            final Set<Integer> inFlight = ConcurrentHashMap.newKeySet();
+            // 最近一次PATCH/PUT的时间，用于过期清理
+            volatile long lastActivity = System.currentTimeMillis();
+            
+            ResumableUpload(String id, String username, String filename, long length, long chunkSize) {
+                this.id = id;
+                this.username = username;
+                this.filename = filename;
+                this.length = length;
+                this.chunkSize = chunkSize;
+                this.chunkCount = chunkSize > 0 ? (int) ((length + chunkSize - 1) / chunkSize) : 0;
+                this.doneBits = new AtomicLongArray((chunkCount + 63) / 64);
+                this.remaining = new AtomicInteger(chunkCount);
+                if (chunkSize <= 0) {
+                    try {
+                        this.digest = MessageDigest.getInstance("SHA-256");
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+            
+            boolean isChunked() {
+                return chunkSize > 0;
+            }
+            
+            long chunkOffset(int chunk) {
+                return chunk * chunkSize;
+            }
+            
+            long chunkLength(int chunk) {
+                return Math.min(chunkSize, length - chunkOffset(chunk));
+            }
+            
+            boolean isChunkDone(int chunk) {
+                return (doneBits.get(chunk >>> 6) & (1L << chunk)) != 0;
+            }
+            
+            // 置位成功返回true，已置位返回false
+            boolean setChunkDone(int chunk) {
+                int index = chunk >>> 6;
+                long bit = 1L << chunk;
+                while (true) {
+                    long current = doneBits.get(index);
+                    if ((current & bit) != 0) {
+                        return false;
+                    }
+                    if (doneBits.compareAndSet(index, current, current | bit)) {
+                        return true;
+                    }
+                }
+            }
+            
+            // 从开头起连续完成的字节数
+            long completedPrefix() {
+                int chunk = 0;
+                while (chunk < chunkCount && isChunkDone(chunk)) {
+                    chunk++;
+                }
+                return chunk == chunkCount ? length : chunkOffset(chunk);
+            }
+            
+            // 未完成分块，以"0-3,7"形式的区间列表表示
+            String missingChunks() {
+                StringBuilder sb = new StringBuilder();
+                int chunk = 0;
+                while (chunk < chunkCount) {
+                    if (isChunkDone(chunk)) {
+                        chunk++;
+                        continue;
+                    }
+                    int start = chunk;
+                    while (chunk < chunkCount && !isChunkDone(chunk)) {
+                        chunk++;
+                    }
+                    if (sb.length() > 0) sb.append(',');
+                    sb.append(start);
+                    if (chunk - 1 > start) sb.append('-').append(chunk - 1);
+                }
+                return sb.toString();
+            }
+            
+            Path stagingPath() {
+                return Paths.get(STAGING_DIR, id + ".part");
+            }
+            
+            Path chunksPath() {
+                return Paths.get(STAGING_DIR, id + ".chunks");
+            }
+            
+            Path infoPath() {
+                return Paths.get(STAGING_DIR, id + ".info");
+            }
+        }
+    }
+    
+    // 断点续传处理器
+    // POST /resumable?file=名称（或Upload-Metadata: filename <base64>），Upload-Length: 总长度 -> 201 + Location
+    //      另带Upload-Chunk-Size时创建并行分块上传
+    // HEAD /resumable/<id> -> Upload-Offset（分块模式另有Upload-Chunks-Missing）
+    // PATCH /resumable/<id>，Upload-Offset: 当前偏移，请求体为后续字节 -> 204 + 新的Upload-Offset
+    // PUT /resumable/<id>?chunk=k，请求体为第k个分块（分块模式，可多连接并发）-> 204
+    // DELETE /resumable/<id> -> 终止上传
+    static class ResumableUploadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // 检查登录状态
+            String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
+            String username = SessionManager.validateSession(sessionId);
+            if (username == null) {
+                sendJsonError(exchange, 401, "请先登录");
+                return;
+            }
+            
+            exchange.getResponseHeaders().set("Tus-Resumable", "1.0.0");
+            String method = exchange.getRequestMethod().toUpperCase();
+            String path = exchange.getRequestURI().getPath();
+            String id = path.startsWith("/resumable/") ? path.substring("/resumable/".length()) : "";
+            
+            try {
+                if (id.isEmpty()) {
+                    if ("POST".equals(method)) {
+                        handleCreate(exchange, username);
+                    } else {
+                        sendErrorResponse(exchange, 405, "方法不允许");
+                    }
+                    return;
+                }
+                
+                ResumableUploadManager.ResumableUpload upload = ResumableUploadManager.get(id);
+                if (upload == null || !upload.username.equals(username)) {
+                    sendErrorResponse(exchange, 404, "上传任务不存在");
+                    return;
+                }
+                
+                switch (method) {
+                    case "HEAD":
+                        exchange.getResponseHeaders().set("Upload-Length", String.valueOf(upload.length));
+                        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                        if (upload.isChunked()) {
+                            exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.completedPrefix()));
+                            exchange.getResponseHeaders().set("Upload-Chunk-Size", String.valueOf(upload.chunkSize));
+                            exchange.getResponseHeaders().set("Upload-Chunks-Missing", upload.missingChunks());
+                        } else {
+                            exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.offset));
+                        }
+                        exchange.sendResponseHeaders(200, -1);
+                        exchange.close();
+                        break;
+                    case "PATCH":
+                        upload.lastActivity = System.currentTimeMillis();
+                        if (upload.isChunked()) {
+                            sendErrorResponse(exchange, 400, "分块上传任务请使用PUT ?chunk=");
+                            return;
+                        }
+                        handlePatch(exchange, upload);
+                        upload.lastActivity = System.currentTimeMillis();
+                        break;
+                    case "PUT":
+                        upload.lastActivity = System.currentTimeMillis();
+                        if (!upload.isChunked()) {
+                            sendErrorResponse(exchange, 400, "顺序上传任务请使用PATCH");
+                            return;
+                        }
+                        handleChunk(exchange, upload);
+                        upload.lastActivity = System.currentTimeMillis();
+                        break;
+                    case "DELETE":
+                        if (!upload.lock.tryLock()) {
+                            sendErrorResponse(exchange, 409, "上传任务正在写入");
+                            return;
+                        }
+                        try {
+                            if (!upload.inFlight.isEmpty()) {
+                                sendErrorResponse(exchange, 409, "上传任务正在写入");
+                                return;
+                            }
+                            ResumableUploadManager.remove(upload);
+                        } finally {
+                            upload.lock.unlock();
+                        }
+                        exchange.sendResponseHeaders(204, -1);
+                        exchange.close();
+                        break;
+                    default:
+                        sendErrorResponse(exchange, 405, "方法不允许");
+                }
+            } catch (ChecksumMismatchException e) {
+                sendErrorResponse(exchange, 400, "校验和不匹配: " + e.getMessage());
+            } catch (QuotaExceededException e) {
+                sendJsonError(exchange, 413, e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendJsonError(exchange, 500, "续传失败: " + e.getMessage());
+            }
+        }
+        
+        private void handleCreate(HttpExchange exchange, String username) throws IOException {
+            long length = parseLongHeader(exchange, "Upload-Length");
+            String filename = extractResumableFilename(exchange);
+            if (length < 0 || filename == null || filename.isEmpty()) {
+                sendJsonError(exchange, 400, "缺少Upload-Length或文件名");
+                return;
+            }
+            long chunkSize = 0;
+            if (exchange.getRequestHeaders().containsKey("Upload-Chunk-Size")) {
+                chunkSize = parseLongHeader(exchange, "Upload-Chunk-Size");
+                if (chunkSize <= 0 || !ResumableUploadManager.isValidChunkSize(length, chunkSize)) {
+                    sendJsonError(exchange, 400, "无效的Upload-Chunk-Size");
+                    return;
+                }
+            }
+            
+            filename = UploadHandler.sanitizeFilename(filename);
+            ResumableUploadManager.ResumableUpload upload =
+                ResumableUploadManager.create(username, filename, length, chunkSize);
+            if (length == 0) {
+                ResumableUploadManager.complete(upload);
+            }
+            
+            exchange.getResponseHeaders().set("Location", "/resumable/" + upload.id);
+            exchange.getResponseHeaders().set("Upload-Offset", "0");
+            sendJsonResponse(exchange, 201, String.format(
+                "{\"success\": true, \"id\": \"%s\", \"chunkCount\": %d}", upload.id, upload.chunkCount));
+        }
+        
+        private void handlePatch(HttpExchange exchange, ResumableUploadManager.ResumableUpload upload) throws IOException {
+            long clientOffset = parseLongHeader(exchange, "Upload-Offset");
+            if (clientOffset < 0) {
+                sendErrorResponse(exchange, 400, "缺少Upload-Offset");
+                return;
+            }
+            if (!upload.lock.tryLock()) {
+                sendErrorResponse(exchange, 409, "上传任务正在写入");
+                return;
+            }
+            
+            try {
+                if (clientOffset != upload.offset) {
+                    exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.offset));
+                    sendErrorResponse(exchange, 409, "偏移不匹配");
+                    return;
+                }
+                
+                // 带Digest/Content-MD5时本次PATCH整体校验：校验通过才推进偏移，失败则截回原偏移
+                Checksums expected = Checksums.fromHeaders(exchange.getRequestHeaders());
+                Checksums.Verifier verifier = expected.isEmpty() ? null : new Checksums.Verifier(expected, true);
+                MessageDigest fileDigest = cloneDigest(upload.digest);
+                long position = upload.offset;
+                boolean committed = false;
+                
+                // 按偏移定位写入暂存文件，不校验时每写完一段即推进已提交偏移，连接中断后可从该处续传
+                try (FileChannel channel = FileChannel.open(upload.stagingPath(), StandardOpenOption.WRITE)) {
+                    try {
+                        InputStream body = RateLimiter.wrap(exchange.getRequestBody(),
+                            RateLimiter.forTransfer(exchange, upload.username));
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        int bytesRead;
+                        while ((bytesRead = body.read(buffer)) != -1) {
+                            if (position + bytesRead > upload.length) {
+                                sendErrorResponse(exchange, 413, "超出声明的Upload-Length");
+                                return;
+                            }
+                            position = writeFully(channel, buffer, bytesRead, position);
+                            if (fileDigest != null) {
+                                fileDigest.update(buffer, 0, bytesRead);
+                            }
+                            if (verifier == null) {
+                                upload.offset = position;
+                            } else {
+                                verifier.update(buffer, 0, bytesRead);
+                            }
+                        }
+                        if (verifier != null) {
+                            verifier.verify(null);
+                            upload.offset = position;
+                        }
+                        committed = true;
+                    } catch (ChecksumMismatchException e) {
+                        exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.offset));
+                        sendErrorResponse(exchange, 400, "校验和不匹配: " + e.getMessage());
+                        return;
+                    } finally {
+                        if (verifier == null || committed) {
+                            upload.digest = fileDigest;
+                        } else {
+                            // 丢弃未通过校验的数据，重启后偏移由文件长度恢复
+                            channel.truncate(upload.offset);
+                        }
+                    }
+                }
+                
+                if (upload.offset == upload.length) {
+                    ResumableUploadManager.complete(upload);
+                }
+                exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.offset));
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            } finally {
+                upload.lock.unlock();
+            }
+        }
+        
+        // 写入单个分块：不同分块由不同连接并发写入预分配文件的各自区间
+        private void handleChunk(HttpExchange exchange, ResumableUploadManager.ResumableUpload upload) throws IOException {
+            String query = exchange.getRequestURI().getQuery();
+            int chunk = -1;
+            if (query != null && query.startsWith("chunk=")) {
+                try {
+                    chunk = Integer.parseInt(query.substring("chunk=".length()));
+                } catch (NumberFormatException e) {
+                    chunk = -1;
+                }
+            }
+            if (chunk < 0 || chunk >= upload.chunkCount) {
+                sendErrorResponse(exchange, 400, "无效的分块序号");
+                return;
+            }
+            if (upload.isChunkDone(chunk)) {
+                // 重复提交已完成的分块，直接确认
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+                return;
+            }
+            // 与DELETE/过期清理持同一把锁登记，避免登记前任务已被删除
+            upload.lock.lock();
+            try {
+                if (ResumableUploadManager.get(upload.id) != upload) {
+                    sendErrorResponse(exchange, 404, "上传任务不存在");
+                    return;
+                }
+                if (!upload.inFlight.add(chunk)) {
+                    sendErrorResponse(exchange, 409, "该分块正在写入");
+                    return;
+                }
+            } finally {
+                upload.lock.unlock();
+            }
+            
+            try {
+                Checksums checksums = Checksums.fromHeaders(exchange.getRequestHeaders());
+                Checksums.Verifier verifier = checksums.isEmpty() ? null : new Checksums.Verifier(checksums, true);
+                long expected = upload.chunkLength(chunk);
+                long start = upload.chunkOffset(chunk);
+                long position = start;
+                try (FileChannel channel = FileChannel.open(upload.stagingPath(), StandardOpenOption.WRITE)) {
+                    RateLimiter.Throttle throttle = RateLimiter.forTransfer(exchange, upload.username);
+                    InputStream raw = exchange.getRequestBody();
+                    if (verifier == null && throttle == null
+                            && raw instanceof FileTransferInput && ((FileTransferInput) raw).canTransfer()) {
+                        // 无需校验和限速时由传输层直接写入文件，不经过堆内缓冲
+                        FileTransferInput direct = (FileTransferInput) raw;
+                        long n;
+                        while (position - start < expected
+                                && (n = direct.transferTo(channel, position, expected - (position - start))) > 0) {
+                            position += n;
+                        }
+                        if (position - start == expected && raw.read() != -1) {
+                            sendErrorResponse(exchange, 400, "分块长度不正确");
+                            return;
+                        }
+                    } else {
+                        InputStream body = RateLimiter.wrap(raw, throttle);
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        int bytesRead;
+                        while ((bytesRead = body.read(buffer)) != -1) {
+                            if (position - start + bytesRead > expected) {
+                                sendErrorResponse(exchange, 400, "分块长度不正确");
+                                return;
+                            }
+                            position = writeFully(channel, buffer, bytesRead, position);
+                            if (verifier != null) {
+                                verifier.update(buffer, 0, bytesRead);
+                            }
+                        }
+                    }
+                    // 数据先落盘再写完成标记，崩溃后不会出现已标记完成但数据丢失的分块
+                    channel.force(false);
+                }
+                if (position - start != expected) {
+                    sendErrorResponse(exchange, 400, "分块长度不正确");
+                    return;
+                }
+                if (verifier != null) {
+                    verifier.verify(null); // 不匹配时不标记完成，客户端重传该分块
+                }
+                
+                boolean completed = ResumableUploadManager.markChunkDone(upload, chunk);
+                exchange.getResponseHeaders().set("Upload-Complete", String.valueOf(completed));
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            } finally {
+                upload.inFlight.remove(chunk);
+            }
+        }
+        
+        // 复制一份哈希状态，PATCH失败时原状态不受影响；无法复制时放弃增量哈希
+        private MessageDigest cloneDigest(MessageDigest digest) {
+            if (digest == null) {
+                return null;
+            }
+            try {
+                return (MessageDigest) digest.clone();
+            } catch (CloneNotSupportedException e) {
+                return null;
+            }
+        }
+        
+        // 从指定位置写入整段数据，返回写入后的位置
+        private long writeFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException {
+            ByteBuffer slice = ByteBuffer.wrap(buffer, 0, length);
+            while (slice.hasRemaining()) {
+                position += channel.write(slice, position);
+            }
+            return position;
+        }
+        
+        // 文件名可来自查询参数file=，或tus的Upload-Metadata头（filename为base64）
+        private String extractResumableFilename(HttpExchange exchange) throws UnsupportedEncodingException {
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null && query.startsWith("file=")) {
+                return URLDecoder.decode(query.substring(5), StandardCharsets.UTF_8.name());
+            }
+            String metadata = exchange.getRequestHeaders().getFirst("Upload-Metadata");
+            if (metadata != null) {
+                for (String pair : metadata.split(",")) {
+                    String[] kv = pair.trim().split(" ", 2);
+                    if (kv.length == 2 && "filename".equals(kv[0])) {
+                        try {
+                            return new String(Base64.getDecoder().decode(kv[1].trim()), StandardCharsets.UTF_8);
+                        } catch (IllegalArgumentException e) {
+                            return null;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+
+    // 用户文件元数据索引：每个用户目录的文件名、大小、修改时间常驻内存，
+    // 上传/删除时直接更新，外部改动通过WatchService同步，事件溢出时下次访问重新扫描
+    static class FileIndex {
+        private static final Map<String, UserFileIndex> indexes = new ConcurrentHashMap<>();
+        private static final Map<WatchKey, UserFileIndex> watchKeys = new ConcurrentHashMap<>();
+        private static volatile WatchService watchService;
+        
+        static UserFileIndex forUser(String username) throws IOException {
+            UserFileIndex index = indexes.computeIfAbsent(username, UserFileIndex::new);
+            index.ensureLoaded();
+            return index;
+        }
+        
+        // 新文件保存到用户目录后调用：记录上传时间并更新索引
+        static void fileAdded(String username, Path file) {
+            Path dir = Paths.get(UserManager.getUserUploadDir(username));
+            UploadTimes.record(username, relativeName(dir, file), System.currentTimeMillis());
+            fileChanged(username, file);
+        }
+        
+        // 文件写入完成或发生变化后调用
+        static void fileChanged(String username, Path file) {
+            UserFileIndex index = indexes.get(username);
+            if (index != null) {
+                index.refresh(file);
+            }
+        }
+        
+        static void fileRemoved(String username, String name) {
+            UploadTimes.forget(username, name);
+            UserFileIndex index = indexes.get(username);
+            if (index != null) {
+                index.remove(name);
+            }
+        }
+        
+        // 批量操作开始：期间监听到的变化先暂存，由filesChanged统一发布
+        static void beginBatch(String username) {
+            UserFileIndex index = indexes.get(username);
+            if (index != null) {
+                index.batches.incrementAndGet();
+            }
+        }
+        
+        // 批量操作结束后一次性发布：只递增一次版本号
+        static void filesChanged(String username, Collection<String> removed, Collection<Path> changed) {
+            if (!removed.isEmpty()) {
+                // 改名的目标已经接手上传时间；同一批中又改回原名的不删除
+                Path dir = Paths.get(UserManager.getUserUploadDir(username));
+                Set<String> present = new HashSet<>();
+                for (Path file : changed) {
+                    present.add(relativeName(dir, file));
+                }
+                for (String name : removed) {
+                    if (!present.contains(name)) {
+                        UploadTimes.forget(username, name);
+                    }
+                }
+            }
+            UserFileIndex index = indexes.get(username);
+            if (index != null) {
+                index.apply(removed, changed);
+            }
+        }
+        
+        // 文件在用户目录中的相对名称，子目录以"/"分隔
+        static String relativeName(Path dir, Path file) {
+            Path relative = dir.toAbsolutePath().normalize().relativize(file.toAbsolutePath().normalize());
+            StringBuilder name = new StringBuilder();
+            for (Path part : relative) {
+                if (name.length() > 0) {
+                    name.append('/');
+                }
+                name.append(part);
+            }
+            return name.toString();
+        }
+        
+        private static void watch(UserFileIndex index, Path dir) throws IOException {
+            if (watchService == null) {
+                synchronized (FileIndex.class) {
+                    if (watchService == null) {
+                        watchService = FileSystems.getDefault().newWatchService();
+                        Thread watcher = new Thread(FileIndex::watchLoop, "file-index-watcher");
+                        watcher.setDaemon(true);
+                        watcher.start();
+                    }
+                }
+            }
+            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watchKeys.put(key, index);
+        }
+        
+        private static void watchLoop() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                UserFileIndex index = watchKeys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (index == null) {
+                        continue;
+                    }
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        index.invalidate();
+                    } else {
+                        index.refresh(((Path) key.watchable()).resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    // 目录已被删除
+                    watchKeys.remove(key);
+                    if (index != null) {
+                        index.invalidate();
+                    }
+                }
+            }
+        }
+        
+        static class UserFileIndex {
+            final String username;
+            final Path dir;
+            private final Map<String, FileMeta> files = new ConcurrentHashMap<>();
+            private volatile boolean loaded;
+            // 每次变化递增，可作为目录状态的版本号
+            private final AtomicLong version = new AtomicLong();
+            // 进行中的批量操作数，以及期间监听到、待批量结束时处理的路径
+            private final AtomicInteger batches = new AtomicInteger();
+            private final Set<Path> deferred = ConcurrentHashMap.newKeySet();
+            
+            UserFileIndex(String username) {
+                this.username = username;
+                this.dir = Paths.get(UserManager.getUserUploadDir(username));
+            }
+            
+            Collection<FileMeta> files() {
+                return files.values();
+            }
+            
+            FileMeta get(String name) {
+                return files.get(name);
+            }
+            
+            long version() {
+                return version.get();
+            }
+            
+            private void ensureLoaded() throws IOException {
+                if (loaded) {
+                    return;
+                }
+                synchronized (this) {
+                    if (loaded) {
+                        return;
+                    }
+                    if (!Files.isDirectory(dir)) {
+                        Files.createDirectories(dir);
+                    }
+                    rescan();
+                    loaded = true;
+                }
+            }
+            
+            // 全量扫描（含子目录）：遍历时直接拿到属性，每个文件只stat一次
+            private void rescan() throws IOException {
+                Map<String, FileMeta> scanned = new HashMap<>();
+                scan(dir, scanned);
+                files.keySet().retainAll(scanned.keySet());
+                files.putAll(scanned);
+                version.incrementAndGet();
+            }
+            
+            // 扫描一个目录子树，同时监听其中每个目录
+            private void scan(Path root, Map<String, FileMeta> into) throws IOException {
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                        watch(UserFileIndex.this, subdir);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            FileMeta meta = FileMeta.of(username, relativeName(dir, file), attrs);
+                            into.put(meta.name, meta);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            
+            // 内容没有变化时不递增版本号，自身操作引起的监听事件不会让列表缓存失效
+            void refresh(Path file) {
+                if (batches.get() > 0) {
+                    deferred.add(file);
+                    return;
+                }
+                if (update(file)) {
+                    version.incrementAndGet();
+                }
+            }
+            
+            void remove(String name) {
+                if (files.remove(name) != null) {
+                    version.incrementAndGet();
+                }
+            }
+            
+            void apply(Collection<String> removed, Collection<Path> changed) {
+                if (batches.get() > 0) {
+                    batches.decrementAndGet();
+                }
+                boolean modified = false;
+                for (Iterator<Path> it = deferred.iterator(); it.hasNext(); ) {
+                    modified |= update(it.next());
+                    it.remove();
+                }
+                for (String name : removed) {
+                    modified |= files.remove(name) != null;
+                }
+                for (Path file : changed) {
+                    modified |= update(file);
+                }
+                if (modified) {
+                    version.incrementAndGet();
+                }
+            }
+            
+            // 更新单个路径的元数据，返回是否有变化；新出现的子目录整体扫描
+            private boolean update(Path file) {
+                String name = relativeName(dir, file);
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attrs.isDirectory()) {
+                        Map<String, FileMeta> scanned = new HashMap<>();
+                        scan(file, scanned);
+                        boolean modified = false;
+                        for (FileMeta meta : scanned.values()) {
+                            modified |= !meta.sameAs(files.put(meta.name, meta));
+                        }
+                        return modified;
+                    }
+                    if (attrs.isRegularFile()) {
+                        FileMeta meta = FileMeta.of(username, name, attrs);
+                        return !meta.sameAs(files.put(name, meta));
+                    }
+                    return files.remove(name) != null;
+                } catch (NoSuchFileException e) {
+                    return files.remove(name) != null;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    invalidate();
+                    return true;
+                }
+            }
+            
+            void invalidate() {
+                loaded = false;
+                version.incrementAndGet();
+            }
+        }
+        
+        static final class FileMeta {
+            final String name;
+            final long size;
+            final long lastModified;
+            final String sha256; // 不在内容存储中的文件为null
+            
+            FileMeta(String name, long size, long lastModified, String sha256) {
+                this.name = name;
+                this.size = size;
+                this.lastModified = lastModified;
+                this.sha256 = sha256;
+            }
+            
+            // 硬链接共用inode的修改时间（即blob首次写入的时间），以本用户记录的上传时间为准；
+            // 上传后又被修改过的文件取修改时间
+            static FileMeta of(String username, String name, BasicFileAttributes attrs) {
+                long lastModified = Math.max(attrs.lastModifiedTime().toMillis(), UploadTimes.get(username, name));
+                return new FileMeta(name, attrs.size(), lastModified, BlobStore.hashOf(attrs));
+            }
+            
+            boolean sameAs(FileMeta other) {
+                return other != null && name.equals(other.name) && size == other.size
+                    && lastModified == other.lastModified && Objects.equals(sha256, other.sha256);
+            }
+        }
+        
+        // 每个用户文件的上传时间，保存在 users/<用户名>.times：
+        // 只追加的日志，每行"毫秒时间<TAB>相对名称"，"-<TAB>相对名称"表示删除，后出现的行覆盖前面的
+        static class UploadTimes {
+            private static final Map<String, Map<String, Long>> byUser = new ConcurrentHashMap<>();
+            
+            // 没有记录时返回0
+            static long get(String username, String name) {
+                Long millis = load(username).get(name);
+                return millis != null ? millis : 0;
+            }
+            
+            static void record(String username, String name, long millis) {
+                Map<String, Long> times = load(username);
+                synchronized (times) {
+                    times.put(name, millis);
+                    append(username, millis + "\t" + name + "\n");
+                }
+            }
+            
+            static void forget(String username, String name) {
+                Map<String, Long> times = load(username);
+                synchronized (times) {
+                    if (times.remove(name) != null) {
+                        append(username, "-\t" + name + "\n");
+                    }
+                }
+            }
+            
+            // 改名或移动后由新名称沿用原上传时间
+            static void copy(String username, String from, String to) {
+                long millis = get(username, from);
+                if (millis > 0) {
+                    record(username, to, millis);
+                }
+            }
+            
+            private static Map<String, Long> load(String username) {
+                Map<String, Long> times = byUser.get(username);
+                if (times != null) {
+                    return times;
+                }
+                return byUser.computeIfAbsent(username, user -> {
+                    Map<String, Long> loaded = new ConcurrentHashMap<>();
+                    Path file = pathOf(user);
+                    if (!Files.exists(file)) {
+                        return loaded;
+                    }
+                    int lines = 0;
+                    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            int tab = line.indexOf('\t');
+                            if (tab <= 0) {
+                                continue;
+                            }
+                            lines++;
+                            String name = line.substring(tab + 1);
+                            if (line.charAt(0) == '-') {
+                                loaded.remove(name);
+                            } else {
+                                try {
+                                    loaded.put(name, Long.parseLong(line.substring(0, tab)));
+                                } catch (NumberFormatException e) {
+                                    // 忽略损坏的行
+                                }
+                            }
+                        }
+                        if (lines > loaded.size() * 2 + 64) {
+                            compact(file, loaded);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("无法读取上传时间记录 " + file + ": " + e.getMessage());
+                    }
+                    return loaded;
+                });
+            }
+            
+            // 日志中过时的行过多时重写为当前内容
+            private static void compact(Path file, Map<String, Long> times) throws IOException {
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, Long> entry : times.entrySet()) {
+                        writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+                    }
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            
+            private static void append(String username, String line) {
+                try {
+                    Files.write(pathOf(username), line.getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    // 只影响列表显示的时间，不让上传失败
+                    System.err.println("无法记录上传时间: " + e.getMessage());
+                }
+            }
+            
+            private static Path pathOf(String username) {
+                return Paths.get(USERS_DIR, username + ".times");
+            }
+        }
+    }
+
+    // 文件列表处理器
+    // 参数：sort=date|name|size，order=desc|asc，q=文件名包含的关键字，limit=每页数量，cursor=上一页返回的nextCursor
+    // 每页只保留limit条候选（有界堆），结果直接流式写出；ETag由目录版本号和查询参数决定，未变化时返回304
+    static class FileListHandler implements HttpHandler {
+        private static final int DEFAULT_LIMIT = 500;
+        private static final int MAX_LIMIT = 5000;
+        // 区分进程实例，避免重启后版本号重复导致ETag误判
+        private static final String INSTANCE_TAG = Long.toHexString(System.nanoTime() ^ System.currentTimeMillis());
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // 检查登录状态
+            String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
+            String username = SessionManager.validateSession(sessionId);
+            if (username == null) {
+                sendJsonError(exchange, 401, "请先登录");
+                return;
+            }
+            
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendErrorResponse(exchange, 405, "方法不允许");
+                return;
+            }
+            
+            try {
+                Map<String, String> params = parseFormData(
+                    exchange.getRequestURI().getRawQuery() == null ? "" : exchange.getRequestURI().getRawQuery());
+                String sort = params.getOrDefault("sort", "date");
+                boolean descending = !"asc".equalsIgnoreCase(params.getOrDefault("order", "date".equals(sort) ? "desc" : "asc"));
+                String filter = params.getOrDefault("q", "").toLowerCase(Locale.ROOT);
+                int limit;
+                try {
+                    limit = Math.min(MAX_LIMIT, Math.max(1, Integer.parseInt(params.getOrDefault("limit", String.valueOf(DEFAULT_LIMIT)))));
+                } catch (NumberFormatException e) {
+                    sendJsonError(exchange, 400, "无效的limit参数");
+                    return;
+                }
+                Comparator<FileIndex.FileMeta> order = listOrder(sort, descending);
+                if (order == null) {
+                    sendJsonError(exchange, 400, "无效的sort参数");
+                    return;
+                }
+                FileIndex.FileMeta after = null;
+                String cursor = params.get("cursor");
+                if (cursor != null && !cursor.isEmpty()) {
+                    after = decodeCursor(cursor);
+                    if (after == null) {
+                        sendJsonError(exchange, 400, "无效的cursor参数");
+                        return;
+                    }
+                }
+                
+                FileIndex.UserFileIndex index = FileIndex.forUser(username);
+                // 先取版本号再读取数据，保证ETag不会比内容新
+                long version = index.version();
+                String query = exchange.getRequestURI().getRawQuery();
+                String etag = "\"" + INSTANCE_TAG + "-" + Long.toHexString(version) + "-"
+                    + Integer.toHexString(query == null ? 0 : query.hashCode()) + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Cache-Control", "private, no-cache");
+                String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                if (ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                
+                // 有界堆：只保留排在cursor之后的前limit+1条
+                PriorityQueue<FileIndex.FileMeta> page = new PriorityQueue<>(limit + 1, order.reversed());
+                int total = 0;
+                for (FileIndex.FileMeta file : index.files()) {
+                    if (!filter.isEmpty() && !file.name.toLowerCase(Locale.ROOT).contains(filter)) {
+                        continue;
+                    }
+                    total++;
+                    if (after != null && order.compare(file, after) <= 0) {
+                        continue;
+                    }
+                    if (page.size() <= limit) {
+                        page.add(file);
+                    } else if (order.compare(file, page.peek()) < 0) {
+                        page.poll();
+                        page.add(file);
+                    }
+                }
+                boolean hasMore = page.size() > limit;
+                if (hasMore) {
+                    page.poll();
+                }
+                FileIndex.FileMeta[] files = page.toArray(new FileIndex.FileMeta[0]);
+                Arrays.sort(files, order);
+                
+                // 流式写出JSON
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, 0);
+                try (Writer writer = new BufferedWriter(
+                        new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 16 * 1024)) {
+                    writeFileList(writer, files, total, hasMore ? encodeCursor(files[files.length - 1]) : null);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendJsonError(exchange, 500, "获取文件列表失败: " + e.getMessage());
+            }
+        }
+        
+        // 写出一页文件列表JSON，逐条复用同一个StringBuilder
+        static void writeFileList(Writer writer, FileIndex.FileMeta[] files, int total, String nextCursor) throws IOException {
+            StringBuilder entry = new StringBuilder(256);
+            writer.write("{\"files\":[");
+            for (int i = 0; i < files.length; i++) {
+                FileIndex.FileMeta file = files[i];
+                entry.setLength(0);
+                if (i > 0) {
+                    entry.append(',');
+                }
+                entry.append("{\"name\":\"");
+                appendJsonEscaped(entry, file.name);
+                entry.append("\",\"size\":").append(file.size)
+                    .append(",\"date\":").append(file.lastModified)
+                    .append(",\"dateStr\":\"").append(formatDisplayDate(file.lastModified)).append('"');
+                if (file.sha256 != null) {
+                    entry.append(",\"sha256\":\"").append(file.sha256).append('"');
+                }
+                entry.append('}');
+                writer.append(entry);
+            }
+            writer.write("],\"total\":" + total + ",\"nextCursor\":");
+            writer.write(nextCursor != null ? "\"" + nextCursor + "\"" : "null");
+            writer.write("}");
+        }
+        
+        // 排序规则，同值时按文件名保证顺序稳定，游标才能准确定位
+        private static Comparator<FileIndex.FileMeta> listOrder(String sort, boolean descending) {
+            Comparator<FileIndex.FileMeta> key;
+            switch (sort) {
+                case "date":
+                    key = Comparator.comparingLong(f -> f.lastModified);
+                    break;
+                case "size":
+                    key = Comparator.comparingLong(f -> f.size);
+                    break;
+                case "name":
+                    key = Comparator.comparing(f -> f.name);
+                    break;
+                default:
+                    return null;
+            }
+            if (descending) {
+                key = key.reversed();
+            }
+            return key.thenComparing(f -> f.name);
+        }
+        
+        // 游标记录上一页最后一项的排序字段
+        private static String encodeCursor(FileIndex.FileMeta last) {
+            String raw = last.size + ":" + last.lastModified + ":" + last.name;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        private static FileIndex.FileMeta decodeCursor(String cursor) {
+            try {
+                String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                String[] parts = raw.split(":", 3);
+                if (parts.length != 3) {
+                    return null;
+                }
+                return new FileIndex.FileMeta(parts[2], Long.parseLong(parts[0]), Long.parseLong(parts[1]), null);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    // 文件下载处理器（支持Range/If-Range断点续传与多区间请求）
+    static class DownloadHandler implements HttpHandler {
+        private static final int MAX_RANGES = 64;
+        // 按扩展名判断可压缩的文本类文件；其余（含已压缩格式）保持零拷贝发送
+        private static final Set<String> COMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "log", "csv", "tsv", "json", "jsonl", "ndjson", "xml", "html", "htm", "css", "js",
+            "md", "svg", "yaml", "yml", "ini", "conf", "cfg", "sql", "properties"));
+        private static final long COMPRESS_MIN_SIZE = 1024;
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // 检查登录状态
+            String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
+            String username = SessionManager.validateSession(sessionId);
+            if (username == null) {
+                sendErrorResponse(exchange, 401, "请先登录");
+                return;
+            }
+            
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendErrorResponse(exchange, 405, "方法不允许");
+                return;
+            }
+            
+            try {
+                String query = exchange.getRequestURI().getQuery();
+                if (query == null || !query.startsWith("file=")) {
+                    sendErrorResponse(exchange, 400, "缺少文件参数");
+                    return;
+                }
+                
+                // 解码文件名
+                String filename = URLDecoder.decode(query.substring(5), StandardCharsets.UTF_8.name());
+                String userUploadDir = UserManager.getUserUploadDir(username);
+                Path filePath = Paths.get(userUploadDir, filename).normalize();
+                Path uploadDir = Paths.get(userUploadDir).normalize().toAbsolutePath();
+                
+                // 安全验证：确保文件在用户的上传目录内
+                if (!filePath.toAbsolutePath().startsWith(uploadDir)) {
+                    sendErrorResponse(exchange, 403, "禁止访问: 无效的文件路径");
+                    return;
+                }
+                
+                if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
+                    sendErrorResponse(exchange, 404, "文件不存在");
+                    return;
+                }
+                
+                // 设置响应头，支持中文文件名
+                String encodedFilename = URLEncoder.encode(filePath.getFileName().toString(), StandardCharsets.UTF_8.name())
+                        .replace("+", "%20")
+                        .replace("\"", "%22");
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.getResponseHeaders().set("Content-Disposition", 
+                    "attachment; filename*=UTF-8''" + encodedFilename);
+                
+                BasicFileAttributes attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
+                long fileSize = attrs.size();
+                // 与文件列表一致，取本用户的上传时间而不是共享inode的修改时间
+                long lastModified = Math.max(attrs.lastModifiedTime().toMillis(),
+                    FileIndex.UploadTimes.get(username, FileIndex.relativeName(uploadDir, filePath)));
+                // 存储引擎中的文件以内容哈希作为强校验值
+                String contentHash = BlobStore.hashOf(attrs);
+                String etag = contentHash != null ? "\"" + contentHash + "\""
+                    : "\"" + Long.toHexString(fileSize) + "-" + Long.toHexString(lastModified) + "\"";
+                String lastModifiedStr = formatHttpDate(lastModified);
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Last-Modified", lastModifiedStr);
+                if (contentHash != null) {
+                    // RFC 3230实例摘要，针对完整文件，部分响应也可用来校验拼接结果
+                    exchange.getResponseHeaders().set("Digest",
+                        "sha-256=" + Base64.getEncoder().encodeToString(UserManager.fromHex(contentHash)));
+                }
+                
+                // 可压缩文件的完整下载按Accept-Encoding压缩，区间请求仍按原始字节处理
+                String encoding = null;
+                if (fileSize >= COMPRESS_MIN_SIZE && isCompressibleFile(filename)) {
+                    exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+                    if (exchange.getRequestHeaders().getFirst("Range") == null) {
+                        encoding = StaticFileHandler.negotiateEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                    }
+                }
+                if (encoding != null) {
+                    String cacheKey = (contentHash != null ? contentHash
+                        : filePath.toAbsolutePath() + "|" + fileSize + "|" + lastModified) + "|" + encoding;
+                    // Digest是未编码内容的摘要，压缩响应不再携带；ETag区分编码版本
+                    exchange.getResponseHeaders().remove("Digest");
+                    exchange.getResponseHeaders().set("ETag", etag.substring(0, etag.length() - 1)
+                        + ("gzip".equals(encoding) ? "-gz\"" : "-df\""));
+                    exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                    sendCompressed(exchange, filePath, fileSize, encoding, cacheKey, RateLimiter.forTransfer(exchange, username));
+                    return;
+                }
+                
+                // 解析Range，If-Range不匹配时按完整文件返回
+                List<long[]> ranges = null;
+                String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                if (rangeHeader != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModifiedStr))) {
+                    ranges = parseRanges(rangeHeader, fileSize);
+                }
+                
+                if (ranges != null && ranges.isEmpty()) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + fileSize);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
                 }
                 
-                if (savedFiles.isEmpty()) {
-                    sendJsonError(exchange, 400, "未找到有效文件");
-                } else {
-                    // 返回成功响应
-                    String jsonResponse = String.format(
-                        "{\"success\": true, \"count\": %d, \"message\": \"成功上传 %d 个文件\"}",
-                        savedFiles.size(), savedFiles.size()
-                    );
-                    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-                    exchange.sendResponseHeaders(200, jsonResponse.getBytes(StandardCharsets.UTF_8).length);
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(jsonResponse.getBytes(StandardCharsets.UTF_8));
+                // 发送文件内容（按位置零拷贝，限速时按片发送）
+                RateLimiter.Throttle throttle = RateLimiter.forTransfer(exchange, username);
+                try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                    if (ranges == null) {
+                        exchange.sendResponseHeaders(200, fileSize);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            transferFully(fileChannel, 0, fileSize, os, throttle);
+                        }
+                    } else if (ranges.size() == 1) {
+                        long[] range = ranges.get(0);
+                        long length = range[1] - range[0] + 1;
+                        exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + range[0] + "-" + range[1] + "/" + fileSize);
+                        exchange.sendResponseHeaders(206, length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            transferFully(fileChannel, range[0], length, os, throttle);
+                        }
+                    } else {
+                        sendMultipartRanges(exchange, fileChannel, ranges, fileSize, throttle);
                     }
                 }
             } catch (Exception e) {
                 e.printStackTrace();
-                sendJsonError(exchange, 500, "上传失败: " + e.getMessage());
+                sendErrorResponse(exchange, 500, "下载失败: " + e.getMessage());
             }
         }
         
-        // 安全写入缓冲区 - 防止溢出
-        private void writeToBufferSafely(ByteBuffer buffer, byte[] data, FileChannel channel) throws IOException {
-            int offset = 0;
-            while (offset < data.length) {
-                if (!buffer.hasRemaining()) {
-                    flushBuffer(buffer, channel);
+        // 压缩版本已缓存则定长发送；否则边读边压缩、分块传输，常被下载的文件顺带存入缓存
+        private void sendCompressed(HttpExchange exchange, Path filePath, long fileSize, String encoding,
+                                    String cacheKey, RateLimiter.Throttle throttle) throws IOException {
+            byte[] cached = CompressedVariantCache.get(cacheKey);
+            if (cached != null) {
+                exchange.sendResponseHeaders(200, cached.length);
+                try (OutputStream os = RateLimiter.wrap(exchange.getResponseBody(), throttle)) {
+                    os.write(cached);
                 }
-                
-                int length = Math.min(buffer.remaining(), data.length - offset);
-                buffer.put(data, offset, length);
-                offset += length;
+                return;
+            }
+            
+            boolean keep = CompressedVariantCache.recordHit(cacheKey)
+                && fileSize <= CompressedVariantCache.MAX_ENTRY_SIZE;
+            ByteArrayOutputStream copy = keep ? new ByteArrayOutputStream((int) (fileSize / 4)) : null;
+            exchange.sendResponseHeaders(200, 0);
+            try (InputStream in = Files.newInputStream(filePath);
+                 OutputStream os = RateLimiter.wrap(exchange.getResponseBody(), throttle)) {
+                OutputStream sink = copy == null ? os : new FilterOutputStream(os) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        copy.write(b);
+                    }
+                    
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        copy.write(b, off, len);
+                    }
+                };
+                Deflater deflater = "gzip".equals(encoding) ? null : new Deflater();
+                try {
+                    OutputStream compressor = deflater == null
+                        ? new GZIPOutputStream(sink, 64 * 1024)
+                        : new DeflaterOutputStream(sink, deflater, 64 * 1024);
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) != -1) {
+                        compressor.write(buffer, 0, bytesRead);
+                    }
+                    compressor.close();
+                } finally {
+                    if (deflater != null) {
+                        deflater.end();
+                    }
+                }
+            }
+            if (copy != null) {
+                CompressedVariantCache.put(cacheKey, copy.toByteArray());
             }
         }
         
-        // 刷新缓冲区到文件
-        private void flushBuffer(ByteBuffer buffer, FileChannel channel) throws IOException {
-            buffer.flip();
-            while (buffer.hasRemaining()) {
-                channel.write(buffer);
+        private static boolean isCompressibleFile(String filename) {
+            int dot = filename.lastIndexOf('.');
+            return dot >= 0 && COMPRESSIBLE_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+        }
+        
+        // 多个区间以multipart/byteranges返回，预先算出总长度以便定长发送
+        private void sendMultipartRanges(HttpExchange exchange, FileChannel fileChannel, List<long[]> ranges,
+                                         long fileSize, RateLimiter.Throttle throttle) throws IOException {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            List<byte[]> partHeaders = new ArrayList<>();
+            long totalLength = 0;
+            for (long[] range : ranges) {
+                byte[] header = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + fileSize + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+                partHeaders.add(header);
+                totalLength += header.length + (range[1] - range[0] + 1);
+            }
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            totalLength += closing.length;
+            
+            exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            exchange.sendResponseHeaders(206, totalLength);
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] range = ranges.get(i);
+                    os.write(partHeaders.get(i));
+                    transferFully(fileChannel, range[0], range[1] - range[0] + 1, os, throttle);
+                }
+                os.write(closing);
             }
-            buffer.clear();
         }
         
-        // 提取文件名
-        private String extractFilename(String headers) {
-            for (String line : headers.split("\r\n")) {
-                if (line.startsWith("Content-Disposition:")) {
-                    String[] parts = line.split(";");
-                    for (String part : parts) {
-                        part = part.trim();
-                        if (part.startsWith("filename=")) {
-                            String filename = part.substring("filename=".length());
-                            if (filename.startsWith("\"") && filename.endsWith("\"")) {
-                                filename = filename.substring(1, filename.length() - 1);
-                            }
-                            try {
-                                filename = URLDecoder.decode(filename, StandardCharsets.UTF_8.name());
-                                return filename;
-                            } catch (UnsupportedEncodingException e) {
-                                e.printStackTrace();
+        // 解析"bytes=a-b,c-,-n"形式的Range头
+        // 返回null表示格式无法识别（按完整文件响应），返回空列表表示所有区间都不可满足
+        static List<long[]> parseRanges(String header, long fileSize) {
+            if (!header.startsWith("bytes=")) {
+                return null;
+            }
+            String[] specs = header.substring("bytes=".length()).split(",");
+            if (specs.length > MAX_RANGES) {
+                return null;
+            }
+            List<long[]> ranges = new ArrayList<>();
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                try {
+                    long start;
+                    long end;
+                    if (dash == 0) {
+                        // 后缀区间：最后n个字节
+                        long suffix = Long.parseLong(spec.substring(1));
+                        if (suffix <= 0) {
+                            continue;
+                        }
+                        start = Math.max(0, fileSize - suffix);
+                        end = fileSize - 1;
+                    } else {
+                        start = Long.parseLong(spec.substring(0, dash));
+                        if (dash == spec.length() - 1) {
+                            end = fileSize - 1;
+                        } else {
+                            end = Long.parseLong(spec.substring(dash + 1));
+                            if (end < start) {
+                                return null;
                             }
-                            return filename;
+                            end = Math.min(end, fileSize - 1);
                         }
                     }
+                    if (start < fileSize) {
+                        ranges.add(new long[] {start, end});
+                    }
+                } catch (NumberFormatException e) {
+                    return null;
                 }
             }
-            return null;
+            return ranges;
         }
+    }
+
+    // 下载压缩版本缓存：同一内容第MIN_HITS次下载时顺带保存压缩结果，之后直接定长发送
+    // 键为内容哈希（不在存储中的文件用路径、大小和修改时间）加编码，总字节数按LRU限制
+    // -Dmirad.download.compressCacheBytes 总容量（默认64MB），-Dmirad.download.compressCacheMinHits 缓存门槛（默认2）
+    static class CompressedVariantCache {
+        private static final long CAPACITY = Long.getLong("mirad.download.compressCacheBytes", 64L * 1024 * 1024);
+        private static final int MIN_HITS = Integer.getInteger("mirad.download.compressCacheMinHits", 2);
+        // 单个文件原始大小上限，避免一个大文件挤掉全部缓存
+        static final long MAX_ENTRY_SIZE = CAPACITY / 8;
+        private static final int MAX_TRACKED = 10000;
         
-        // 清理文件名
-        private String sanitizeFilename(String filename) {
-            filename = filename.replace("\\", "/");
-            int lastSlash = filename.lastIndexOf("/");
-            if (lastSlash != -1) {
-                filename = filename.substring(lastSlash + 1);
+        private static final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private static long cachedBytes;
+        private static final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+        
+        static byte[] get(String key) {
+            synchronized (cache) {
+                return cache.get(key);
+            }
+        }
+        
+        // 记录一次压缩下载，返回这次是否应当缓存结果
+        static boolean recordHit(String key) {
+            if (hits.size() > MAX_TRACKED) {
+                hits.clear();
+            }
+            return hits.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet() >= MIN_HITS;
+        }
+        
+        static void put(String key, byte[] data) {
+            hits.remove(key);
+            if (data.length > MAX_ENTRY_SIZE) {
+                return;
+            }
+            synchronized (cache) {
+                byte[] previous = cache.put(key, data);
+                if (previous != null) {
+                    cachedBytes -= previous.length;
+                }
+                cachedBytes += data.length;
+                // 超出容量时淘汰最久未访问的版本
+                Iterator<byte[]> it = cache.values().iterator();
+                while (cachedBytes > CAPACITY && it.hasNext()) {
+                    cachedBytes -= it.next().length;
+                    it.remove();
+                }
             }
-            // 过滤非法字符，保留中文、字母、数字和部分符号
-            return filename.replaceAll("[^\\p{L}\\p{N}\\p{P}\\p{Z}]", "_");
         }
     }
 
-
-    // 文件列表处理器
-    static class FileListHandler implements HttpHandler {
+    // 打包下载处理器：把多个文件（或全部文件）边读边写成ZIP流，分块传输，不落临时文件也不缓存整个压缩包
+    // GET /download-zip?file=a&file=b 或 ?all=1；文件较多时用POST表单提交同样的参数
+    static class ZipDownloadHandler implements HttpHandler {
+        private static final int MAX_FORM_SIZE = 4 * 1024 * 1024; // POST表单的大小上限
+        // 已经是压缩格式的文件不再压缩，只做存储
+        private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar", "apk",
+            "docx", "xlsx", "pptx", "odt", "epub", "pdf",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "aac", "ogg", "flac",
+            "mp4", "m4a", "m4v", "mkv", "mov", "avi", "webm"));
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             // 检查登录状态
             String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
             String username = SessionManager.validateSession(sessionId);
             if (username == null) {
-                sendJsonError(exchange, 401, "请先登录");
+                sendErrorResponse(exchange, 401, "请先登录");
                 return;
             }
             
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            String method = exchange.getRequestMethod();
+            String params;
+            if ("GET".equalsIgnoreCase(method)) {
+                params = exchange.getRequestURI().getRawQuery();
+            } else if ("POST".equalsIgnoreCase(method)) {
+                byte[] body = readAllBytes(exchange, MAX_FORM_SIZE);
+                if (body == null) {
+                    sendErrorResponse(exchange, 413, "请求体过大");
+                    return;
+                }
+                params = new String(body, StandardCharsets.UTF_8);
+            } else {
                 sendErrorResponse(exchange, 405, "方法不允许");
                 return;
             }
+            if (params == null) {
+                params = "";
+            }
             
+            // 先校验全部文件，出错时还能返回正常的错误响应
+            List<Path> files = new ArrayList<>();
+            Path uploadDir = Paths.get(UserManager.getUserUploadDir(username)).normalize().toAbsolutePath();
             try {
-                String userUploadDir = UserManager.getUserUploadDir(username);
-                Path uploadDir = Paths.get(userUploadDir);
-                List<Map<String, Object>> files = new ArrayList<>();
-                
-                if (Files.exists(uploadDir)) {
-                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(uploadDir)) {
-                        for (Path file : stream) {
-                            if (!Files.isDirectory(file)) {
-                                Map<String, Object> fileInfo = new HashMap<>();
-                                fileInfo.put("name", file.getFileName().toString());
-                                fileInfo.put("size", Files.size(file));
-                                fileInfo.put("date", Files.getLastModifiedTime(file).toMillis());
-                                fileInfo.put("dateStr", DATE_FORMAT.format(new Date(Files.getLastModifiedTime(file).toMillis())));
-                                files.add(fileInfo);
-                            }
-                        }
+                if ("1".equals(parseFormData(params).get("all"))) {
+                    for (FileIndex.FileMeta file : FileIndex.forUser(username).files()) {
+                        files.add(uploadDir.resolve(file.name));
                     }
-                }
-                
-                // 按修改时间降序排序
-                files.sort((a, b) -> 
-                    Long.compare((Long)b.get("date"), (Long)a.get("date"))
-                );
-                
-                // 构建JSON响应
-                StringBuilder json = new StringBuilder("{\"files\":[");
-                for (int i = 0; i < files.size(); i++) {
-                    Map<String, Object> file = files.get(i);
-                    json.append(String.format(
-                        "{\"name\":\"%s\",\"size\":%d,\"date\":%d,\"dateStr\":\"%s\"}", 
-                        file.get("name").toString().replace("\"", "\\\""), 
-                        (Long)file.get("size"),
-                        (Long)file.get("date"),
-                        file.get("dateStr").toString().replace("\"", "\\\"")
-                    ));
-                    if (i < files.size() - 1) {
-                        json.append(",");
+                    Collections.sort(files);
+                } else {
+                    // 按规范化后的路径去重（如"a"与"./a"），同名条目会让ZipOutputStream中途抛出异常
+                    Set<Path> seen = new HashSet<>();
+                    for (String filename : parseFormValues(params, "file")) {
+                        Path filePath = uploadDir.resolve(filename).normalize();
+                        if (!seen.add(filePath)) {
+                            continue;
+                        }
+                        // 安全验证：确保文件在用户的上传目录内
+                        if (!filePath.startsWith(uploadDir) || filePath.equals(uploadDir)) {
+                            sendErrorResponse(exchange, 403, "禁止访问: 无效的文件路径");
+                            return;
+                        }
+                        if (!Files.isRegularFile(filePath)) {
+                            sendErrorResponse(exchange, 404, "文件不存在: " + filename);
+                            return;
+                        }
+                        files.add(filePath);
                     }
                 }
-                json.append("]}");
-                
-                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-                byte[] responseBytes = json.toString().getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, responseBytes.length);
-                
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(responseBytes);
+                if (files.isEmpty()) {
+                    sendErrorResponse(exchange, 400, "没有要下载的文件");
+                    return;
                 }
             } catch (Exception e) {
                 e.printStackTrace();
-                sendJsonError(exchange, 500, "获取文件列表失败: " + e.getMessage());
+                sendErrorResponse(exchange, 500, "打包下载失败: " + e.getMessage());
+                return;
+            }
+            
+            exchange.getResponseHeaders().set("Content-Type", "application/zip");
+            exchange.getResponseHeaders().set("Content-Disposition",
+                "attachment; filename*=UTF-8''" + URLEncoder.encode(username, StandardCharsets.UTF_8.name()) + ".zip");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, 0);
+            try (ZipOutputStream zip = new ZipOutputStream(
+                    new BufferedOutputStream(RateLimiter.wrap(exchange.getResponseBody(),
+                        RateLimiter.forTransfer(exchange, username)), 64 * 1024), StandardCharsets.UTF_8)) {
+                byte[] buffer = new byte[64 * 1024];
+                for (Path file : files) {
+                    writeEntry(zip, file, FileIndex.relativeName(uploadDir, file), username, buffer);
+                }
+            } catch (IOException e) {
+                // 响应头已发出，只能中断连接；客户端会得到不完整的压缩包
+                e.printStackTrace();
+            }
+        }
+        
+        private void writeEntry(ZipOutputStream zip, Path file, String name, String username, byte[] buffer) throws IOException {
+            BasicFileAttributes attrs;
+            InputStream in;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                in = Files.newInputStream(file);
+            } catch (NoSuchFileException e) {
+                return; // 打包过程中被删除，跳过
+            }
+            try (InputStream source = in) {
+                ZipEntry entry = new ZipEntry(name);
+                entry.setTime(Math.max(attrs.lastModifiedTime().toMillis(), FileIndex.UploadTimes.get(username, name)));
+                // STORED条目要求预先知道CRC，需要多读一遍文件；改为0级deflate，同样不做压缩且可以流式写出
+                zip.setLevel(isCompressedFile(name) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+                zip.putNextEntry(entry);
+                int bytesRead;
+                while ((bytesRead = source.read(buffer)) != -1) {
+                    zip.write(buffer, 0, bytesRead);
+                }
+                zip.closeEntry();
             }
         }
+        
+        private static boolean isCompressedFile(String filename) {
+            int dot = filename.lastIndexOf('.');
+            return dot >= 0 && COMPRESSED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+        }
     }
 
-    // 文件下载处理器
-    static class DownloadHandler implements HttpHandler {
+    // 文件删除处理器
+    static class DeleteHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             // 检查登录状态
@@ -639,7 +6101,7 @@ public class WebServer {
                 return;
             }
             
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            if (!"DELETE".equalsIgnoreCase(exchange.getRequestMethod())) {
                 sendErrorResponse(exchange, 405, "方法不允许");
                 return;
             }
@@ -654,91 +6116,194 @@ public class WebServer {
                 // 解码文件名
                 String filename = URLDecoder.decode(query.substring(5), StandardCharsets.UTF_8.name());
                 String userUploadDir = UserManager.getUserUploadDir(username);
-                Path filePath = Paths.get(userUploadDir, filename).normalize();
+                Path filePath = Paths.get(userUploadDir, filename).normalize().toAbsolutePath();
                 Path uploadDir = Paths.get(userUploadDir).normalize().toAbsolutePath();
                 
-                // 安全验证：确保文件在用户的上传目录内
-                if (!filePath.toAbsolutePath().startsWith(uploadDir)) {
+                // 安全验证（file=或file=.会落到上传目录本身）
+                if (!filePath.startsWith(uploadDir) || filePath.equals(uploadDir)) {
                     sendErrorResponse(exchange, 403, "禁止访问: 无效的文件路径");
                     return;
                 }
                 
-                if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
+                // 与批量操作一致只删除普通文件：目录或符号链接会让用量和文件数统计出错
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(filePath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
                     sendErrorResponse(exchange, 404, "文件不存在");
                     return;
                 }
-                
-                // 设置响应头，支持中文文件名
-                String encodedFilename = URLEncoder.encode(filename, StandardCharsets.UTF_8.name())
-                        .replace("+", "%20")
-                        .replace("\"", "%22");
-                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
-                exchange.getResponseHeaders().set("Content-Disposition", 
-                    "attachment; filename*=UTF-8''" + encodedFilename);
-                
-                // 发送文件内容（使用零拷贝）
-                long fileSize = Files.size(filePath);
-                exchange.sendResponseHeaders(200, fileSize);
-                
-                try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ);
-                     OutputStream os = exchange.getResponseBody()) {
-                    
-                    fileChannel.transferTo(0, fileSize, Channels.newChannel(os));
+                if (!attrs.isRegularFile()) {
+                    sendErrorResponse(exchange, 400, "只能删除文件");
+                    return;
                 }
+                
+                UsageManager.fileRemoved(username, BlobStore.deleteUserFile(filePath));
+                FileIndex.fileRemoved(username, FileIndex.relativeName(uploadDir, filePath));
+                sendJsonResponse(exchange, 200, "{\"success\": true, \"message\": \"文件删除成功\"}");
             } catch (Exception e) {
                 e.printStackTrace();
-                sendErrorResponse(exchange, 500, "下载失败: " + e.getMessage());
+                sendErrorResponse(exchange, 500, "删除失败: " + e.getMessage());
             }
         }
     }
 
-    // 文件删除处理器
-    static class DeleteHandler implements HttpHandler {
+    // 批量文件操作处理器：一次请求执行多条删除、重命名、移动，逐条返回结果，目录变化在最后统一发布一次
+    // POST /batch，请求体为文本，每行一条操作，字段以制表符分隔（清理后的文件名不含控制字符）：
+    //   delete<TAB>路径
+    //   rename<TAB>路径<TAB>新文件名        （同一目录内改名）
+    //   move<TAB>路径<TAB>目标子目录        （子目录不存在时自动创建，空串或"."表示根目录）
+    // 路径相对于用户上传目录，子目录以"/"分隔；目标已存在时该条失败，不覆盖
+    static class BatchHandler implements HttpHandler {
+        private static final int MAX_OPERATIONS = 100000;
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             // 检查登录状态
             String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
             String username = SessionManager.validateSession(sessionId);
             if (username == null) {
-                sendErrorResponse(exchange, 401, "请先登录");
+                sendJsonError(exchange, 401, "请先登录");
                 return;
             }
             
-            if (!"DELETE".equalsIgnoreCase(exchange.getRequestMethod())) {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
                 sendErrorResponse(exchange, 405, "方法不允许");
                 return;
             }
             
+            Path uploadDir = Paths.get(UserManager.getUserUploadDir(username)).normalize().toAbsolutePath();
+            List<String> removed = new ArrayList<>();
+            List<Path> changed = new ArrayList<>();
+            FileIndex.beginBatch(username);
             try {
-                String query = exchange.getRequestURI().getQuery();
-                if (query == null || !query.startsWith("file=")) {
-                    sendErrorResponse(exchange, 400, "缺少文件参数");
-                    return;
+                BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+                // 先读完并计数，超出上限时一条都不执行
+                List<String> lines = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    if (lines.size() == MAX_OPERATIONS) {
+                        sendJsonError(exchange, 413, "单次最多 " + MAX_OPERATIONS + " 条操作");
+                        return;
+                    }
+                    lines.add(line);
                 }
                 
-                // 解码文件名
-                String filename = URLDecoder.decode(query.substring(5), StandardCharsets.UTF_8.name());
-                String userUploadDir = UserManager.getUserUploadDir(username);
-                Path filePath = Paths.get(userUploadDir, filename).normalize();
-                Path uploadDir = Paths.get(userUploadDir).normalize().toAbsolutePath();
-                
-                // 安全验证
-                if (!filePath.toAbsolutePath().startsWith(uploadDir)) {
-                    sendErrorResponse(exchange, 403, "禁止访问: 无效的文件路径");
-                    return;
+                StringBuilder results = new StringBuilder();
+                int count = lines.size();
+                int failed = 0;
+                for (String op : lines) {
+                    String[] fields = op.split("\t", -1);
+                    String error = apply(fields, username, uploadDir, removed, changed);
+                    if (error != null) {
+                        failed++;
+                    }
+                    results.append(results.length() > 0 ? "," : "").append("{\"op\":\"");
+                    appendJsonEscaped(results, fields[0]);
+                    results.append("\",\"file\":\"");
+                    appendJsonEscaped(results, fields.length > 1 ? fields[1] : "");
+                    results.append("\",\"success\":").append(error == null);
+                    if (error != null) {
+                        results.append(",\"message\":\"");
+                        appendJsonEscaped(results, error);
+                        results.append('"');
+                    }
+                    results.append('}');
                 }
-                
-                if (!Files.exists(filePath)) {
-                    sendErrorResponse(exchange, 404, "文件不存在");
-                    return;
+                sendJsonResponse(exchange, 200, "{\"success\": true, \"total\": " + count + ", \"failed\": " + failed
+                    + ", \"results\": [" + results + "]}");
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendJsonError(exchange, 500, "批量操作失败: " + e.getMessage());
+            } finally {
+                // 已经执行的操作无论请求是否完整都要发布
+                FileIndex.filesChanged(username, removed, changed);
+            }
+        }
+        
+        // 执行单条操作，成功返回null，失败返回原因
+        private String apply(String[] fields, String username, Path uploadDir, List<String> removed, List<Path> changed) {
+            String op = fields[0];
+            int expected = "delete".equals(op) ? 2 : ("rename".equals(op) || "move".equals(op)) ? 3 : -1;
+            if (expected < 0) {
+                return "未知操作";
+            }
+            if (fields.length != expected) {
+                return "参数数量不正确";
+            }
+            Path source = resolve(uploadDir, fields[1]);
+            if (source == null) {
+                return "禁止访问: 无效的文件路径";
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!attrs.isRegularFile()) {
+                    return "只能操作文件";
+                }
+                if ("delete".equals(op)) {
+                    UsageManager.fileRemoved(username, BlobStore.deleteUserFile(source));
+                    removed.add(FileIndex.relativeName(uploadDir, source));
+                    return null;
                 }
                 
-                Files.delete(filePath);
-                sendJsonResponse(exchange, 200, "{\"success\": true, \"message\": \"文件删除成功\"}");
-            } catch (Exception e) {
+                Path target;
+                if ("rename".equals(op)) {
+                    String newName = fields[2];
+                    if (newName.isEmpty() || newName.contains("/") || newName.contains("\\")
+                            || newName.equals(".") || newName.equals("..")) {
+                        return "无效的文件名";
+                    }
+                    target = source.resolveSibling(UploadHandler.sanitizeFilename(newName));
+                } else {
+                    String folder = fields[2];
+                    Path targetDir = folder.isEmpty() || folder.equals(".") ? uploadDir : resolve(uploadDir, folder);
+                    if (targetDir == null) {
+                        return "禁止访问: 无效的目标目录";
+                    }
+                    Files.createDirectories(targetDir);
+                    target = targetDir.resolve(source.getFileName());
+                }
+                if (!target.normalize().startsWith(uploadDir)) {
+                    return "禁止访问: 无效的目标路径";
+                }
+                if (target.equals(source)) {
+                    return null;
+                }
+                // 同一文件系统内改名，硬链接关系（内容存储引用）保持不变；不带REPLACE_EXISTING，目标已存在时失败
+                Files.move(source, target);
+                String sourceName = FileIndex.relativeName(uploadDir, source);
+                FileIndex.UploadTimes.copy(username, sourceName, FileIndex.relativeName(uploadDir, target));
+                removed.add(sourceName);
+                changed.add(target);
+                return null;
+            } catch (NoSuchFileException e) {
+                return "文件不存在";
+            } catch (FileAlreadyExistsException e) {
+                return "目标已存在";
+            } catch (IOException e) {
                 e.printStackTrace();
-                sendErrorResponse(exchange, 500, "删除失败: " + e.getMessage());
+                return "操作失败: " + e.getMessage();
+            }
+        }
+        
+        // 解析相对路径并做与DeleteHandler相同的目录包含检查；每一级名称都按上传时的规则清理
+        private Path resolve(Path uploadDir, String relative) {
+            if (relative.isEmpty()) {
+                return null;
+            }
+            Path path = uploadDir;
+            for (String segment : relative.split("/")) {
+                if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                    return null;
+                }
+                path = path.resolve(UploadHandler.sanitizeFilename(segment));
             }
+            path = path.normalize();
+            return path.startsWith(uploadDir) && !path.equals(uploadDir) ? path : null;
         }
     }
 
@@ -867,6 +6432,22 @@ public class WebServer {
         }
     }
     
+    // 存储用量查询：直接读取内存计数器，quota为0表示不限
+    static class UsageHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String sessionId = getSessionIdFromCookies(exchange.getRequestHeaders().getFirst("Cookie"));
+            String username = SessionManager.validateSession(sessionId);
+            if (username == null) {
+                sendJsonError(exchange, 401, "请先登录");
+                return;
+            }
+            
+            sendJsonResponse(exchange, 200, String.format("{\"success\": true, \"used\": %d, \"files\": %d, \"quota\": %d}",
+                UsageManager.used(username), UsageManager.fileCount(username), UsageManager.quotaOf(username)));
+        }
+    }
+    
     // 辅助方法：发送响应
     private static void sendResponse(HttpExchange exchange, int statusCode, String message) 
             throws IOException {
@@ -905,6 +6486,95 @@ public class WebServer {
         sendJsonResponse(exchange, statusCode, jsonResponse);
     }
     
+    // 辅助方法：读取数值型请求头，缺失或非法时返回-1
+    private static long parseLongHeader(HttpExchange exchange, String name) {
+        String value = exchange.getRequestHeaders().getFirst(name);
+        if (value == null) return -1;
+        try {
+            long parsed = Long.parseLong(value.trim());
+            return parsed >= 0 ? parsed : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    // 辅助方法：在用户目录下生成不会覆盖已有文件的路径
+    private static Path uniqueUploadPath(String userUploadDir, String filename) {
+        Path path = Paths.get(userUploadDir, filename);
+        // 防止文件覆盖
+        if (Files.exists(path)) {
+            String prefix = String.valueOf(System.currentTimeMillis());
+            path = Paths.get(userUploadDir, prefix + "_" + filename);
+            for (int i = 1; Files.exists(path); i++) {
+                path = Paths.get(userUploadDir, prefix + "_" + i + "_" + filename);
+            }
+        }
+        return path;
+    }
+    
+    // 辅助方法：从文件指定位置零拷贝发送count字节（transferTo单次可能传不完）
+    // throttle不为null时每次最多发送一片并按实际发送量计费
+    // 传输层支持时（FileTransferOutput）直接发送到socket，否则经 Channels.newChannel 包装
+    private static void transferFully(FileChannel fileChannel, long position, long count, OutputStream out,
+                                      RateLimiter.Throttle throttle) throws IOException {
+        FileTransferOutput direct = out instanceof FileTransferOutput && ((FileTransferOutput) out).canTransfer()
+            ? (FileTransferOutput) out : null;
+        WritableByteChannel channel = direct == null ? Channels.newChannel(out) : null;
+        long end = position + count;
+        while (position < end) {
+            long chunk = throttle == null ? end - position : Math.min(end - position, RateLimiter.QUANTUM);
+            long transferred = direct != null
+                ? direct.transferFrom(fileChannel, position, chunk) : fileChannel.transferTo(position, chunk, channel);
+            if (transferred <= 0) {
+                throw new EOFException("文件在发送过程中被截断");
+            }
+            position += transferred;
+            if (throttle != null) {
+                throttle.consume(transferred);
+            }
+        }
+    }
+    
+    // 辅助方法：格式化HTTP日期（RFC 1123）
+    private static String formatHttpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+            ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+    
+    // 辅助方法：判断内容类型是否值得压缩（文本类）
+    private static boolean isCompressibleType(String contentType) {
+        return contentType.startsWith("text/")
+            || contentType.startsWith("application/javascript")
+            || contentType.startsWith("application/json")
+            || contentType.startsWith("application/xml")
+            || contentType.startsWith("image/svg+xml");
+    }
+    
+    // 辅助方法：格式化页面上显示的日期
+    private static String formatDisplayDate(long millis) {
+        return DATE_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+    
+    // 辅助方法：追加JSON字符串内容（转义引号、反斜杠和控制字符）
+    private static void appendJsonEscaped(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+    }
+    
     // 辅助方法：从Cookie中获取sessionId
     private static String getSessionIdFromCookies(String cookieHeader) {
         if (cookieHeader == null) return null;
@@ -929,6 +6599,47 @@ public class WebServer {
         return buffer.toByteArray();
     }
     
+    // 辅助方法：读取请求体，声明的或实际的长度超过limit时返回null
+    private static byte[] readAllBytes(HttpExchange exchange, int limit) throws IOException {
+        String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            if (declared != null && Long.parseLong(declared.trim()) > limit) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        InputStream is = exchange.getRequestBody();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int nRead;
+        byte[] data = new byte[1024];
+        while ((nRead = is.read(data, 0, data.length)) != -1) {
+            if (buffer.size() + nRead > limit) {
+                return null;
+            }
+            buffer.write(data, 0, nRead);
+        }
+        return buffer.toByteArray();
+    }
+    
+    // 辅助方法：取出表单或查询串中同名参数的全部值
+    private static List<String> parseFormValues(String data, String name) {
+        List<String> values = new ArrayList<>();
+        for (String pair : data.split("&")) {
+            String[] keyValue = pair.split("=", 2);
+            if (keyValue.length == 2) {
+                try {
+                    if (name.equals(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8.name()))) {
+                        values.add(URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8.name()));
+                    }
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return values;
+    }
+    
     // 辅助方法：解析表单数据
     private static Map<String, String> parseFormData(String data) {
         Map<String, String> params = new HashMap<>();
@@ -939,7 +6650,8 @@ public class WebServer {
                     String key = URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8.name());
                     String value = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8.name());
                     params.put(key, value);
-                } catch (UnsupportedEncodingException e) {
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    // 非法的%转义（如%zz）只跳过这一对参数
                     e.printStackTrace();
                 }
             }
@@ -29,7 +29,8 @@ echo "[$(date '+%Y-%m-%d %H:%M:%S')] 创建必要目录..."
 mkdir -p out/uploads out/users
 
 # 设置JVM参数
-JVM_OPTS="-Xms256m -Xmx1024m -Dfile.encoding=UTF-8"
+# 可通过 EXTRA_JVM_OPTS 追加参数，例如 EXTRA_JVM_OPTS="-Dmirad.executor=virtual"
+JVM_OPTS="-Xms256m -Xmx1024m -Dfile.encoding=UTF-8 ${EXTRA_JVM_OPTS:-}"
 
 # 启动服务器（检查主类是否存在）
 echo "[$(date '+%Y-%m-%d %H:%M:%S')] 启动服务器 (端口: 9090, 内存: $JVM_OPTS)..."
@@ -9,6 +9,10 @@ document.addEventListener('DOMContentLoaded', function() {
     const uploadError = document.getElementById('upload-error');
     const fileList = document.getElementById('file-list');
     const refreshBtn = document.getElementById('refresh-btn');
+    const zipSelectedBtn = document.getElementById('zip-selected-btn');
+    const zipAllBtn = document.getElementById('zip-all-btn');
+    const deleteSelectedBtn = document.getElementById('delete-selected-btn');
+    const usageInfo = document.getElementById('usage-info');
     const messageModal = document.getElementById('message-modal');
     const messageTitle = document.getElementById('message-title');
     const messageContent = document.getElementById('message-content');
@@ -33,6 +37,14 @@ document.addEventListener('DOMContentLoaded', function() {
 
     let currentUser = null;
 
+    // 分块上传参数
+    const CHUNKED_UPLOAD_THRESHOLD = 64 * 1024 * 1024;
+    const UPLOAD_CHUNK_SIZE = 8 * 1024 * 1024;
+    const UPLOAD_PARALLELISM = 4;
+
+    // 文件列表每页数量
+    const FILE_LIST_PAGE_SIZE = 200;
+
     // 初始化时确保只显示一个认证弹窗
     registerModal.style.display = 'none';
     loginModal.style.display = 'none';
@@ -47,7 +59,10 @@ document.addEventListener('DOMContentLoaded', function() {
     dropZone.addEventListener('dragleave', handleDragLeave);
     dropZone.addEventListener('drop', handleDrop);
     uploadBtn.addEventListener('click', uploadFiles);
-    refreshBtn.addEventListener('click', loadFileList);
+    refreshBtn.addEventListener('click', () => loadFileList());
+    zipSelectedBtn.addEventListener('click', downloadSelectedAsZip);
+    zipAllBtn.addEventListener('click', () => window.location.href = '/download-zip?all=1');
+    deleteSelectedBtn.addEventListener('click', deleteSelectedFiles);
     closeMessageModal.addEventListener('click', () => messageModal.style.display = 'none');
     closePreview.addEventListener('click', () => previewModal.style.display = 'none');
     closeLoginModal.addEventListener('click', () => loginModal.style.display = 'none');
@@ -106,6 +121,7 @@ document.addEventListener('DOMContentLoaded', function() {
         document.querySelector('.upload-section').style.display = 'none';
         document.querySelector('.file-list-section').style.display = 'none';
         fileList.innerHTML = '<div class="no-files">请先登录以查看您的文件</div>';
+        usageInfo.textContent = '';
     }
 
     // 处理登录
@@ -258,6 +274,12 @@ document.addEventListener('DOMContentLoaded', function() {
             return;
         }
 
+        // 大文件走并行分块上传，多连接同时发送
+        if (Array.from(files).some(file => file.size >= CHUNKED_UPLOAD_THRESHOLD)) {
+            uploadFilesInChunks(Array.from(files));
+            return;
+        }
+
         const formData = new FormData();
         Array.from(files).forEach(file => {
             formData.append('files', file);
@@ -307,13 +329,82 @@ document.addEventListener('DOMContentLoaded', function() {
         xhr.send(formData);
     }
 
-    // 加载文件列表
-    function loadFileList() {
+    // 并行分块上传：创建分块任务后用多个连接并发PUT各个分块
+    async function uploadFilesInChunks(files) {
+        const totalBytes = files.reduce((sum, file) => sum + file.size, 0);
+        let sentBytes = 0;
+        const updateProgress = () => {
+            const percent = totalBytes > 0 ? Math.round((sentBytes / totalBytes) * 100) : 100;
+            progressBar.style.width = percent + '%';
+            progressText.textContent = percent + '%';
+        };
+
+        try {
+            for (const file of files) {
+                const createResponse = await fetch(`/resumable?file=${encodeURIComponent(file.name)}`, {
+                    method: 'POST',
+                    headers: {
+                        'Upload-Length': String(file.size),
+                        'Upload-Chunk-Size': String(UPLOAD_CHUNK_SIZE)
+                    }
+                });
+                const created = await createResponse.json();
+                if (!createResponse.ok || !created.success) {
+                    throw new Error(created.message || '创建上传任务失败');
+                }
+
+                let nextChunk = 0;
+                const worker = async () => {
+                    while (nextChunk < created.chunkCount) {
+                        const chunk = nextChunk++;
+                        const start = chunk * UPLOAD_CHUNK_SIZE;
+                        const blob = file.slice(start, Math.min(start + UPLOAD_CHUNK_SIZE, file.size));
+                        const response = await fetch(`/resumable/${created.id}?chunk=${chunk}`, {
+                            method: 'PUT',
+                            body: blob
+                        });
+                        if (!response.ok) {
+                            throw new Error('分块上传失败');
+                        }
+                        sentBytes += blob.size;
+                        updateProgress();
+                    }
+                };
+                const workers = [];
+                for (let i = 0; i < UPLOAD_PARALLELISM; i++) {
+                    workers.push(worker());
+                }
+                await Promise.all(workers);
+            }
+
+            showMessage('成功提示', `成功上传 ${files.length} 个文件`);
+            loadFileList();
+            fileInput.value = '';
+            document.querySelector('.file-msg').textContent = '拖放文件到此处或点击选择';
+        } catch (error) {
+            uploadError.textContent = error.message;
+            uploadError.style.display = 'block';
+        } finally {
+            // 重置进度条
+            setTimeout(() => {
+                progressBar.style.width = '0%';
+                progressText.textContent = '0%';
+            }, 1000);
+        }
+    }
+
+    // 加载文件列表（分页，cursor为空时重新加载第一页）
+    function loadFileList(cursor) {
         if (!currentUser) return;
 
-        fileList.innerHTML = '<div class="loading">加载中...</div>';
-        
-        fetch('/list-files')
+        const append = typeof cursor === 'string';
+        if (!append) {
+            fileList.innerHTML = '<div class="loading">加载中...</div>';
+            loadUsage();
+        }
+        const url = `/list-files?limit=${FILE_LIST_PAGE_SIZE}` + (append ? `&cursor=${encodeURIComponent(cursor)}` : '');
+
+        fetch(url)
             .then(response => {
                 if (!response.ok) {
                     if (response.status === 401) {
@@ -328,8 +419,8 @@ document.addEventListener('DOMContentLoaded', function() {
             })
             .then(data => {
                 if (data.files && data.files.length > 0) {
-                    renderFileList(data.files);
-                } else {
+                    renderFileList(data.files, append, data.nextCursor);
+                } else if (!append) {
                     fileList.innerHTML = '<div class="no-files">暂无文件，请上传文件</div>';
                 }
             })
@@ -338,21 +429,26 @@ document.addEventListener('DOMContentLoaded', function() {
             });
     }
 
-    // 渲染文件列表
-    function renderFileList(files) {
-        let html = '<table class="files-table">';
-        html += `
-            <tr>
-                <th>文件名</th>
-                <th>大小</th>
-                <th>修改时间</th>
-                <th>操作</th>
-            </tr>
-        `;
-        
+    // 显示存储用量和配额
+    function loadUsage() {
+        fetch('/usage')
+            .then(response => response.ok ? response.json() : null)
+            .then(data => {
+                if (!data) return;
+                usageInfo.textContent = data.quota > 0
+                    ? `已用 ${formatFileSize(data.used)} / ${formatFileSize(data.quota)}`
+                    : `已用 ${formatFileSize(data.used)}`;
+            })
+            .catch(() => {});
+    }
+
+    // 渲染文件列表，append为true时追加到已有表格
+    function renderFileList(files, append, nextCursor) {
+        let rows = '';
         files.forEach(file => {
             // 为响应式设计添加data-label属性
-            html += `<tr>
+            rows += `<tr>
+                <td data-label="选择" class="file-select"><input type="checkbox" class="file-checkbox" value="${escapeHtml(file.name)}"></td>
                 <td data-label="文件名" class="file-name">${escapeHtml(file.name)}</td>
                 <td data-label="大小">${formatFileSize(file.size)}</td>
                 <td data-label="修改时间">${file.dateStr}</td>
@@ -363,40 +459,114 @@ document.addEventListener('DOMContentLoaded', function() {
                 </td>
             </tr>`;
         });
-        
-        html += '</table>';
-        fileList.innerHTML = html;
 
-        // 添加按钮事件
-        document.querySelectorAll('.btn-download').forEach(btn => {
-            btn.addEventListener('click', () => {
-                const filename = btn.getAttribute('data-filename');
-                window.location.href = `/download?file=${filename}`;
-            });
-        });
+        const existingTable = fileList.querySelector('.files-table');
+        if (append && existingTable) {
+            existingTable.insertAdjacentHTML('beforeend', rows);
+        } else {
+            fileList.innerHTML = `<table class="files-table">
+            <tr>
+                <th class="file-select"></th>
+                <th>文件名</th>
+                <th>大小</th>
+                <th>修改时间</th>
+                <th>操作</th>
+            </tr>${rows}</table>`;
+        }
 
-        document.querySelectorAll('.btn-delete').forEach(btn => {
-            btn.addEventListener('click', () => {
-                const filename = btn.getAttribute('data-filename');
-                const fileNameDecoded = decodeURIComponent(filename);
-                
-                if (confirm(`确定要删除文件 "${fileNameDecoded}" 吗？`)) {
-                    deleteFile(filename);
-                }
+        // 还有下一页时显示“加载更多”
+        const oldMoreBtn = fileList.querySelector('.load-more-btn');
+        if (oldMoreBtn) oldMoreBtn.remove();
+        if (nextCursor) {
+            const moreBtn = document.createElement('button');
+            moreBtn.className = 'refresh-btn load-more-btn';
+            moreBtn.textContent = '加载更多';
+            moreBtn.addEventListener('click', () => {
+                moreBtn.disabled = true;
+                loadFileList(nextCursor);
             });
+            fileList.appendChild(moreBtn);
+        }
+    }
+
+    // 文件列表按钮事件（委托到列表容器，追加的行同样生效）
+    fileList.addEventListener('click', (e) => {
+        const btn = e.target.closest('button');
+        if (!btn || !btn.hasAttribute('data-filename')) return;
+        const filename = btn.getAttribute('data-filename');
+
+        if (btn.classList.contains('btn-download')) {
+            window.location.href = `/download?file=${filename}`;
+        } else if (btn.classList.contains('btn-delete')) {
+            const fileNameDecoded = decodeURIComponent(filename);
+            if (confirm(`确定要删除文件 "${fileNameDecoded}" 吗？`)) {
+                deleteFile(filename, btn.closest('tr'));
+            }
+        } else if (btn.classList.contains('btn-preview')) {
+            previewFile(filename, btn.getAttribute('data-type'));
+        }
+    });
+
+    // 勾选的文件打包成一个ZIP下载；用表单POST提交，文件再多也不受URL长度限制
+    function downloadSelectedAsZip() {
+        const checked = fileList.querySelectorAll('.file-checkbox:checked');
+        if (checked.length === 0) {
+            showMessage('错误提示', '请先勾选要下载的文件', 'error');
+            return;
+        }
+        const form = document.createElement('form');
+        form.method = 'POST';
+        form.action = '/download-zip';
+        checked.forEach(box => {
+            const input = document.createElement('input');
+            input.type = 'hidden';
+            input.name = 'file';
+            input.value = box.value;
+            form.appendChild(input);
         });
+        document.body.appendChild(form);
+        form.submit();
+        form.remove();
+    }
 
-        document.querySelectorAll('.btn-preview').forEach(btn => {
-            btn.addEventListener('click', () => {
-                const filename = btn.getAttribute('data-filename');
-                const fileType = btn.getAttribute('data-type');
-                previewFile(filename, fileType);
+    // 勾选的文件通过批量接口一次删除，每行一条操作
+    function deleteSelectedFiles() {
+        const checked = Array.from(fileList.querySelectorAll('.file-checkbox:checked'));
+        if (checked.length === 0) {
+            showMessage('错误提示', '请先勾选要删除的文件', 'error');
+            return;
+        }
+        if (!confirm(`确定要删除选中的 ${checked.length} 个文件吗？`)) return;
+        const body = checked.map(box => `delete\t${box.value}`).join('\n');
+        fetch('/batch', { method: 'POST', headers: { 'Content-Type': 'text/plain; charset=UTF-8' }, body })
+            .then(response => {
+                if (!response.ok) {
+                    throw new Error('删除失败');
+                }
+                return response.json();
+            })
+            .then(data => {
+                data.results.forEach((result, i) => {
+                    if (result.success) {
+                        checked[i].closest('tr').remove();
+                    }
+                });
+                if (data.failed > 0) {
+                    showMessage('错误提示', `${data.failed} 个文件删除失败`, 'error');
+                } else {
+                    showMessage('成功提示', `已删除 ${data.total} 个文件`);
+                }
+                if (!fileList.querySelector('.files-table tr td')) {
+                    loadFileList();
+                }
+            })
+            .catch(error => {
+                showMessage('错误提示', '删除失败: ' + error.message, 'error');
             });
-        });
     }
 
-    // 删除文件
-    function deleteFile(filename) {
+    // 删除文件，成功后直接移除对应行，不再重新拉取整个列表
+    function deleteFile(filename, row) {
         fetch(`/delete?file=${filename}`, { method: 'DELETE' })
             .then(response => {
                 if (!response.ok) {
@@ -406,7 +576,12 @@ document.addEventListener('DOMContentLoaded', function() {
             })
             .then(data => {
                 showMessage('成功提示', '文件已删除');
-                loadFileList();
+                if (row) {
+                    row.remove();
+                }
+                if (!fileList.querySelector('.files-table tr td')) {
+                    loadFileList();
+                }
             })
             .catch(error => {
                 showMessage('错误提示', '删除失败: ' + error.message, 'error');